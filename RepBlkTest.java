@@ -1,19 +1,53 @@
+import rep.RepBatch;
+import rep.RepBin;
 import rep.RepBlk;
+import rep.RepBuffer;
+import rep.RepCache;
+import rep.RepData;
+import rep.RepDeflateWriter;
+import rep.RepGen;
+import rep.RepJfr;
+import rep.RepLoad;
+import rep.RepMonitor;
+import rep.RepPool;
+import rep.RepProfiler;
+import rep.RepRecording;
+import rep.RepRegistry;
+import rep.RepStats;
+import rep.RepTeeWriter;
 import java.io.Writer;
 import java.io.CharArrayWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 
 public class RepBlkTest {
 
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws Exception {
 		test1ProgressiveOutput(); printOk("test1ProgressiveOutput");
 		test2ReuseMainBlock(); printOk("test2ReuseMainBlock");
 		test3NestedBlocks(); printOk("test3NestedBlocks");
@@ -22,6 +56,31 @@ public class RepBlkTest {
 		test6BasicExceptions(); printOk("test6BasicExceptions");
 		test7OrderExceptions(); printOk("test7OrderExceptions");
 		test8VariablesExceptions(); printOk("test8VariablesExceptions");
+		test9TypedBindings(); printOk("test9TypedBindings");
+		test10Precompiled(); printOk("test10Precompiled");
+		test11Registry(); printOk("test11Registry");
+		test12Stats(); printOk("test12Stats");
+		test13FlightRecorder(); printOk("test13FlightRecorder");
+		test14Profiler(); printOk("test14Profiler");
+		test15FragmentCache(); printOk("test15FragmentCache");
+		test16Digest(); printOk("test16Digest");
+		test17Buffer(); printOk("test17Buffer");
+		test18SizeEstimate(); printOk("test18SizeEstimate");
+		test19Minify(); printOk("test19Minify");
+		test20Compression(); printOk("test20Compression");
+		test21Precompressed(); printOk("test21Precompressed");
+		test22TextSharing(); printOk("test22TextSharing");
+		test23Lazy(); printOk("test23Lazy");
+		test24Parallel(); printOk("test24Parallel");
+		test25Pool(); printOk("test25Pool");
+		test26Names(); printOk("test26Names");
+		test27Recording(); printOk("test27Recording");
+		test28Tee(); printOk("test28Tee");
+		test29Batch(); printOk("test29Batch");
+		test30Fingerprints(); printOk("test30Fingerprints");
+		test31Data(); printOk("test31Data");
+		test32Load(); printOk("test32Load");
+		test33Stress(); printOk("test33Stress");
 	}
 
 	private static void printOk(String testName) {
@@ -1359,6 +1418,1816 @@ public class RepBlkTest {
 
 	}
 
+	public static void test9TypedBindings() throws Exception {
+
+		String tpl;
+		RepBlk page;
+		CharArrayWriter out;
+		String expected;
+		String code;
+
+		tpl = "" +
+			"<!--rep var=z place=Z--><!--rep var=a place=A-->" +
+			"<h1>Z A</h1>\n" +
+			"<!--rep blk=item-num--><!--rep var=name place=N-->" +
+				"<li>N</li>\n<!--/rep-->" +
+			"<!--rep blk=end--><!--/rep-->" +
+			"";
+
+		page = new RepBlk(tpl);
+
+		assertEquals("z,a", joinStringList(new ArrayList<String>(
+			page.getVarNames()), ","));
+		assertTrue(page.getBlk(0) == page.getBlk("item-num"));
+		assertTrue(page.getBlk(1) == page.getBlk("end"));
+
+		out = new CharArrayWriter();
+		page.setVar(0, "1").setVar(1, "2").start(out);
+		page.getBlk(0).setVar(0, "x").start();
+		page.getBlk(0).setVar("name", "y").start();
+		page.next();
+		page.getBlk(1).skip();
+		page.next();
+		page.end();
+
+		expected = "" +
+			"<h1>1 2</h1>\n" +
+			"<li>x</li>\n" +
+			"<li>y</li>\n" +
+			"";
+		assertEquals(expected, out.toString());
+
+		assertEquals("ListPageTpl", RepGen.getClassName(
+			"list-page.tpl.html"));
+
+		code = RepGen.generate(page, "demo", "ListPageTpl", "t.html");
+		assertTrue(code.indexOf("package demo;") > -1);
+		assertTrue(code.indexOf("public ListPageTpl z(String") > -1);
+		assertTrue(code.indexOf("public ItemNum itemNum()") > -1);
+		assertTrue(code.indexOf("public End end_()") > -1);
+		assertTrue(code.indexOf("public ItemNum name(String") > -1);
+		assertTrue(code.indexOf("blk.setVar(1, value);") > -1);
+
+		RepGen.checkBlk(page, new String[] {"z", "a"},
+			new String[] {"item-num", "end"});
+		boolean ok;
+		try {
+			RepGen.checkBlk(page, new String[] {"a", "z"},
+				new String[] {"item-num", "end"});
+			ok = false;
+		}
+		catch (IllegalArgumentException e) {
+			ok = e.getMessage().startsWith(
+				"Template does not match the generated class");
+		}
+		assertTrue(ok);
+
+		//names that are keywords, reserved methods, equal but for the
+		//case, or the types used by the generated code:
+		tpl = "" +
+			"<!--rep var=class place=C-->" +
+			"<!--rep var=start place=S-->C S\n" +
+			"<!--rep blk=Item--><!--rep var=blk place=B-->B;" +
+				"<!--/rep-->" +
+			"<!--rep blk=item-->no<!--/rep-->" +
+			"<!--rep blk=writer-->w<!--/rep-->" +
+			"<!--rep blk=string-->no<!--/rep-->\n" +
+			"";
+		page = new RepBlk(tpl);
+		code = RepGen.generate(page, "gen", "AwkwardTpl",
+			"awkward.tpl.html");
+		assertTrue(code.indexOf("public Item_ item()") > -1);
+
+		File dir = new File("TestRepBlk-temp-dir");
+		File pkg = new File(dir, "gen");
+		File file = new File(pkg, "AwkwardTpl.java");
+		pkg.mkdirs();
+		writeFile(file, code);
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertEquals(0, compiler.run(null, null, null, "-d",
+			dir.getPath(), "-cp", System.getProperty(
+			"java.class.path"), file.getPath()));
+		URLClassLoader loader = new URLClassLoader(
+			new URL[] { dir.toURI().toURL() },
+			RepBlkTest.class.getClassLoader());
+		Object gen = loader.loadClass("gen.AwkwardTpl")
+			.getConstructor(RepBlk.class).newInstance(page);
+
+		out = new CharArrayWriter();
+		invoke(invoke(gen, "class_", "1"), "start_", "2");
+		invoke(gen, "start", out);
+		invoke(invoke(invoke(gen, "Item"), "blk_", "x"), "start");
+		invoke(gen, "next");
+		invoke(invoke(gen, "item"), "skip");
+		invoke(gen, "next");
+		invoke(invoke(gen, "writer"), "start");
+		invoke(gen, "next");
+		invoke(invoke(gen, "string"), "skip");
+		invoke(gen, "next");
+		invoke(gen, "end");
+		assertEquals("1 2\nx;w\n", out.toString());
+
+		loader.close();
+		for (File f : pkg.listFiles())
+			f.delete();
+		pkg.delete();
+		dir.delete();
+	}
+
+	//calls the public method of the object with the given name and
+	//number of arguments:
+	private static Object invoke(Object obj, String name,
+			Object... args) throws Exception {
+		for (Method m : obj.getClass().getMethods()) {
+			int n = m.getParameterTypes().length;
+			if (m.getName().equals(name) && n == args.length)
+				return m.invoke(obj, args);
+		}
+		throw new IllegalStateException("no method " + name);
+	}
+
+	public static void test10Precompiled() throws IOException {
+
+		String tpl;
+		RepBlk page;
+		CharArrayWriter out;
+		String expected;
+		byte[] bin;
+
+		tpl = "" +
+			"<!--rep var=t place=T--><h1>T \u00e1</h1>\n" +
+			"<!--rep blk=a--><!--rep var=n place=N-->" +
+				"<p>N</p>\n" +
+				"<!--rep blk=b-->[N]<!--/rep-->\n" +
+			"<!--/rep-->" +
+			"<!--rep blk=c--><!--/rep-->end\n" +
+			"";
+
+		bin = RepBin.compile(tpl);
+		page = RepBin.load(ByteBuffer.wrap(bin), tpl);
+
+		assertEquals("a,c", joinStringList(page.getBlkNames(), ","));
+		assertEquals("b", joinStringList(
+			page.getBlk("a").getBlkNames(), ","));
+		assertEquals("n", joinStringSet(
+			page.getBlk("a").getVarNames(), ","));
+
+		out = new CharArrayWriter();
+		page.setVar("t", "Title").start(out);
+		page.getBlk("a").setVar("n", "1").start();
+		page.getBlk("a").getBlk("b").start();
+		page.getBlk("a").next();
+		page.getBlk("a").setVar("n", "2").start();
+		page.getBlk("a").getBlk("b").skip();
+		page.getBlk("a").next();
+		page.next();
+		page.getBlk("c").start();
+		page.next();
+		page.end();
+
+		expected = "" +
+			"<h1>Title \u00e1</h1>\n" +
+			"<p>1</p>\n" +
+			"[N]\n" +
+			"<p>2</p>\n" +
+			"\n" +
+			"end\n" +
+			"";
+		assertEquals(expected, out.toString());
+
+		String msg = null;
+		try { RepBin.load(ByteBuffer.wrap(bin), tpl + " "); }
+		catch (IllegalArgumentException e) { msg = e.getMessage(); }
+		assertEquals("Precompiled template does not match the source",
+			msg);
+
+		bin[bin.length - 3] ^= 1;
+		msg = null;
+		try { RepBin.load(ByteBuffer.wrap(bin)); }
+		catch (IllegalArgumentException e) { msg = e.getMessage(); }
+		assertEquals("Corrupted precompiled template", msg);
+
+		msg = null;
+		try { RepBin.load(ByteBuffer.wrap(new byte[10])); }
+		catch (IllegalArgumentException e) { msg = e.getMessage(); }
+		assertEquals("Invalid precompiled template", msg);
+	}
+
+	public static void test11Registry() throws Exception {
+
+		RepBlk page1, page2;
+		CharArrayWriter out1, out2;
+
+		File dir = new File("TestRepBlk-temp-dir");
+		File file = new File(dir, "p.tpl.html");
+		dir.mkdir();
+		writeFile(file, "<!--rep var=v place=V-->1 V" +
+				"<!--rep blk=b-->(V)<!--/rep-->\n");
+
+		RepRegistry reg = new RepRegistry(dir);
+		assertEquals("p.tpl.html", joinStringSet(reg.getNames(), ","));
+		assertTrue(reg.getError("p.tpl.html") == null);
+
+		page1 = reg.get("p.tpl.html");
+		page2 = reg.get("p.tpl.html");
+		assertTrue(page1 != page2);
+		out1 = new CharArrayWriter();
+		out2 = new CharArrayWriter();
+		page1.setVar("v", "a").start(out1);
+		page2.start(out2);
+		page1.getBlk("b").start();
+		page2.getBlk("b").skip();
+
+		writeFile(file, "<!--rep var=v place=V-->2 V" +
+				"<!--rep blk=b-->[V]<!--/rep-->\n");
+		assertTrue(reg.load("p.tpl.html"));
+
+		page1.next(); //old version in use
+		page1.end();
+		assertEquals("1 a(V)\n", out1.toString());
+
+		writeFile(file, "<!--rep var=v place=V-->3" +
+				"<!--rep blk=b--><!--/rep-->\n");
+		assertTrue(! reg.load("p.tpl.html"));
+		assertEquals("One or more variables not found in block: v",
+			reg.getError("p.tpl.html"));
+
+		page1 = reg.get("p.tpl.html"); //last valid version
+		out1 = new CharArrayWriter();
+		page1.start(out1);
+		page1.getBlk("b").start();
+		page1.next();
+		assertEquals("2 V[V]\n", out1.toString());
+
+		page2.next();
+		assertEquals("1 V\n", out2.toString());
+
+		reg.watch();
+		writeFile(file, "<p>4</p>\n");
+		waitText(reg, "p.tpl.html", "<p>4</p>\n");
+		assertTrue(reg.getError("p.tpl.html") == null);
+		file.delete();
+		waitText(reg, "p.tpl.html", null);
+		assertEquals("", joinStringSet(reg.getNames(), ","));
+		reg.close();
+		dir.delete();
+	}
+
+	//waits until the template of the registry writes the given text, or
+	//is removed if it is null:
+	private static void waitText(RepRegistry reg, String name,
+			String text) throws Exception {
+		for (int i = 0; i < 400; i++) {
+			RepBlk page = reg.get(name);
+			if (page == null && text == null)
+				return;
+			if (page != null && text != null) {
+				CharArrayWriter out = new CharArrayWriter();
+				page.start(out); //until the first block
+				if (out.toString().equals(text))
+					return;
+			}
+			Thread.sleep(50);
+		}
+		throw new IllegalStateException("not reloaded: " + text);
+	}
+
+	private static void writeFile(File file, String text)
+			throws IOException {
+		FileWriter writer = new FileWriter(file);
+		writer.write(text);
+		writer.close();
+	}
+
+	public static void test12Stats() throws Exception {
+
+		RepBlk page;
+		CharArrayWriter out;
+		RepStats all = new RepStats("all", null);
+		RepStats stats = new RepStats("p", all);
+
+		page = new RepBlk("<!--rep var=v place=V-->V:" +
+			"<!--rep blk=a--><!--rep blk=b-->b<!--/rep-->a" +
+			"<!--/rep-->.");
+		page.setMonitor(stats);
+		RepBlk a = page.getBlk("a");
+		RepBlk b = a.getBlk("b");
+
+		out = new CharArrayWriter();
+		page.setVar("v", "vv").start(out);
+		a.start();
+		b.start();
+		b.start();
+		a.next();
+		a.start();
+		b.skip();
+		a.next();
+		page.next();
+		page.end();
+		assertEquals("vv:bbaa.", out.toString());
+
+		page.start(out);
+		page.start(out); //restarted
+		tryNext(page, "Next not allowed because the state of child");
+		tryEnd(page, "The page has not been written completely");
+
+		//a page completed after an error caught is not aborted:
+		page.start(out);
+		tryNext(page, "Next not allowed because the state of child");
+		a.skip();
+		page.next();
+		page.end();
+
+		assertEquals(4, (int) stats.getRendersStarted());
+		assertEquals(2, (int) stats.getRendersCompleted());
+		assertEquals(2, (int) stats.getRendersAborted());
+		assertEquals(4, (int) all.getRendersStarted());
+		assertEquals("{/a=2, /a/b=2}",
+			stats.getBlockRepetitions().toString());
+		assertEquals("{}", all.getBlockRepetitions().toString());
+		assertEquals("{The page has not been written completely=2}",
+			stats.getAbortsByError().toString());
+		assertEquals(8 + 2 * 3 + 4, (int) stats.getCharsWritten());
+		assertEquals(18, (int) all.getCharsWritten());
+		assertTrue(stats.getRenderLatencyP99Micros() <=
+			stats.getRenderLatencyMaxMicros());
+
+		//the errors of the Writer are counted by their class:
+		RepStats failures = new RepStats("f", null);
+		page = new RepBlk("<p>x</p>");
+		page.setMonitor(failures);
+		for (int i = 0; i < 2; i++) {
+			final String msg = "peer " + i;
+			try {
+				page.start(new Writer() {
+					public void write(char[] cbuf,
+							int off, int len)
+							throws IOException {
+						throw new IOException(msg);
+					}
+					public void flush() {
+					}
+					public void close() {
+					}
+				});
+				throw new IllegalStateException("not thrown");
+			}
+			catch (IOException e) {
+				assertEquals(msg, e.getMessage());
+			}
+		}
+		assertEquals("{java.io.IOException=2}",
+			failures.getAbortsByError().toString());
+
+		File dir = new File("TestRepBlk-temp-dir");
+		File file = new File(dir, "s.tpl.html");
+		dir.mkdir();
+		writeFile(file, "S");
+		RepRegistry reg = new RepRegistry(dir);
+		reg.enableStats();
+		page = reg.get("s.tpl.html");
+		page.start(new CharArrayWriter());
+		Object value = java.lang.management.ManagementFactory
+			.getPlatformMBeanServer().getAttribute(
+			new javax.management.ObjectName(
+			"rep:type=RepStats,name=\"s.tpl.html\""),
+			"RendersCompleted");
+		assertEquals("1", String.valueOf(value));
+		assertEquals(1, (int) reg.getAllStats().getParseCount());
+		reg.close();
+		assertTrue(reg.getStatsError() == null);
+		file.delete();
+		dir.delete();
+	}
+
+	public static void test13FlightRecorder() throws Exception {
+
+		RepBlk page;
+		RepStats stats = new RepStats("p", null);
+		RepJfr jfr = new RepJfr("p", 0);
+
+		jdk.jfr.Recording rec = new jdk.jfr.Recording();
+		rec.enable("rep.Parse");
+		rec.enable("rep.Render");
+		rec.enable("rep.Block");
+		rec.start();
+
+		page = new RepBlk("a<!--rep blk=b-->b<!--/rep-->c");
+		page.setMonitor(RepMonitor.join(stats, jfr));
+		jfr.parsed("p", page, 30, 1000);
+		page.start(new CharArrayWriter());
+		page.getBlk("b").start();
+		page.next();
+		page.start(new CharArrayWriter());
+		page.start(new CharArrayWriter()); //restarted
+
+		rec.stop();
+		File file = new File("TestRepBlk-temp.jfr");
+		rec.dump(file.toPath());
+		rec.close();
+
+		StringBuilder found = new StringBuilder();
+		for (jdk.jfr.consumer.RecordedEvent e :
+				jdk.jfr.consumer.RecordingFile.readAllEvents(
+				file.toPath())) {
+			String type = e.getEventType().getName();
+			if (type.equals("rep.Parse"))
+				found.append("parse:" + e.getInt("tagCount") +
+					"," + e.getInt("blockCount") + ";");
+			else if (type.equals("rep.Render"))
+				found.append("render:" + e.getLong("chars") +
+					"," + e.getString("error") + ";");
+			else if (type.equals("rep.Block"))
+				found.append("block:" + e.getString("path") +
+					";");
+		}
+		file.delete();
+
+		String events = found.toString();
+		assertTrue(events.indexOf("parse:2,1;") > -1);
+		assertTrue(events.indexOf("render:3,null;") > -1);
+		assertTrue(events.indexOf("render:1," +
+			"The page has not been written completely;") > -1);
+		assertTrue(events.indexOf("block:/b;") > -1);
+		assertEquals(1, (int) stats.getRendersCompleted());
+		assertEquals(3, (int) stats.getRendersStarted());
+	}
+
+	public static void test14Profiler() throws IOException {
+
+		RepBlk page;
+		RepProfiler prof = new RepProfiler("p");
+
+		page = new RepBlk("<ul><!--rep blk=list--><li>" +
+			"<!--rep blk=item-->x<!--/rep--></li>" +
+			"<!--/rep--></ul>");
+		page.setMonitor(prof);
+		RepBlk list = page.getBlk("list");
+		RepBlk item = list.getBlk("item");
+		for (int n = 0; n < 2; n++) {
+			page.start(new CharArrayWriter());
+			list.start();
+			item.start();
+			item.start();
+			item.start();
+			list.next();
+			list.start();
+			item.skip();
+			list.next();
+			page.next();
+		}
+
+		StringBuilder table = new StringBuilder();
+		prof.dump(table);
+		String[] lines = table.toString().split("\n");
+		assertEquals(4, lines.length);
+		assertTrue(lines[1].matches("/ +2 +18 .*"));
+		assertTrue(lines[2].matches("/list +4 +36 .*"));
+		assertTrue(lines[3].matches("/list/item +6 +6 .*"));
+
+		StringBuilder collapsed = new StringBuilder();
+		prof.dumpCollapsed(collapsed);
+		lines = collapsed.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[0].matches("p \\d+"));
+		assertTrue(lines[1].matches("p;list \\d+"));
+		assertTrue(lines[2].matches("p;list;item \\d+"));
+
+		//the names with the separator of the paths are one frame:
+		prof.reset();
+		page = new RepBlk("<!--rep blk=a/b--><!--rep blk=c-->x" +
+			"<!--/rep--><!--/rep-->");
+		page.setMonitor(prof);
+		page.start(new CharArrayWriter());
+		page.getBlk("a/b").start();
+		page.getBlk("a/b").getBlk("c").start();
+		page.getBlk("a/b").next();
+		page.next();
+		table.setLength(0);
+		prof.dump(table);
+		assertTrue(table.toString().contains("\n/a%2Fb/c "));
+		collapsed.setLength(0);
+		prof.dumpCollapsed(collapsed);
+		lines = collapsed.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[1].matches("p;a/b \\d+"));
+		assertTrue(lines[2].matches("p;a/b;c \\d+"));
+	}
+
+	public static void test15FragmentCache() throws IOException {
+
+		RepBlk page = cacheMenus(0);
+		cacheMenus(RepBlk.OPT_LAZY);
+
+		//templates with the same blocks and values sharing a cache:
+		RepCache shared = new RepCache(100, 0);
+		RepBlk[] pages = { new RepBlk("<p><!--rep blk=menu-->" +
+			"<!--rep var=t place=T-->T:<!--rep blk=link-->" +
+			"<!--rep var=l place=L-->(L)<!--/rep-->;" +
+			"<!--/rep--></p>"), new RepBlk("<div>" +
+			"<!--rep blk=menu--><!--rep var=t place=T-->[T]" +
+			"<!--rep blk=link--><!--rep var=l place=L-->(L)" +
+			"<!--/rep--><!--/rep--></div>") };
+		String[] links = { "a" };
+		for (RepBlk p : pages)
+			p.getBlk("menu").setCache(shared);
+		for (int n = 0; n < 2; n++) {
+			assertEquals("<p>m:(a);</p>", writeMenu(pages[0], "m",
+				links, "k", n > 0));
+			assertEquals("<div>[m](a)</div>", writeMenu(pages[1],
+				"m", links, "k", n > 0));
+		}
+		assertEquals(2, shared.size());
+
+		//least recently used entries are removed:
+		RepCache small = new RepCache(2, 0);
+		small.put("a", "A");
+		small.put("b", "B");
+		assertEquals("A", small.get("a"));
+		small.put("c", "C");
+		assertTrue(small.get("b") == null);
+		assertEquals("A", small.get("a"));
+		assertEquals(2, small.size());
+
+		//expired entries are not returned:
+		RepCache expiring = new RepCache(10, 1);
+		expiring.put("a", "A");
+		try { Thread.sleep(5); }
+		catch (InterruptedException e) { }
+		assertTrue(expiring.get("a") == null);
+		assertEquals(0, expiring.size());
+
+		try {
+			page.setCache(new RepCache(1, 0));
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("This method cannot be used on this block",
+					e.getMessage());
+		}
+	}
+
+	//checks the caches of the blocks of a template with the given options
+	//and returns the template:
+	private static RepBlk cacheMenus(int options) throws IOException {
+		RepCache cache = new RepCache(100, 0);
+		RepBlk page = new RepBlk("<p><!--rep blk=menu-->" +
+			"<!--rep var=t place=T-->T:<!--rep blk=link-->" +
+			"<!--rep var=l place=L-->(L)<!--/rep-->;" +
+			"<!--/rep--></p>", options);
+		page.getBlk("menu").setCache(cache);
+		RepBlk copy = page.copy();
+		assertTrue(copy.getBlk("menu").getCache() == cache);
+
+		String[] links = { "a", "b" };
+		assertEquals("<p>m:(a)(b);</p>", writeMenu(page, "m", links,
+				"ab", false));
+		assertEquals("<p>m:(a)(b);</p>", writeMenu(copy, "m", links,
+				"ab", true));
+		assertEquals("<p>n:(a)(b);</p>", writeMenu(copy, "n", links,
+				"ab", false));
+		assertEquals("<p>m:(a);</p>", writeMenu(page, "m",
+				new String[] { "a" }, "a", false));
+		assertEquals("<p>m:(a);</p>", writeMenu(page, "m",
+				new String[] { "a" }, "a", true));
+		assertEquals(3, cache.size());
+		assertEquals(2, (int) cache.getHitCount());
+		assertEquals(3, (int) cache.getMissCount());
+
+		//a block captured inside another captured block:
+		RepCache linkCache = new RepCache(100, 0);
+		page.getBlk("menu").getBlk("link").setCache(linkCache);
+		cache.clear();
+		assertEquals("<p>m:(a)(b);</p>", writeMenu(page, "m", links,
+				"ab", false));
+		assertEquals(2, linkCache.size());
+		assertEquals("<p>o:(a)(b);</p>", writeMenu(page, "o", links,
+				"ab", false));
+		assertEquals(2, (int) linkCache.getHitCount());
+		assertEquals("<p>o:(a)(b);</p>", writeMenu(page, "o", links,
+				"ab", true));
+
+		//the copies keep the caches of the blocks already parsed:
+		copy = page.copy();
+		assertTrue(copy.getBlk("menu").getBlk("link").getCache() ==
+				linkCache);
+		assertEquals("<p>o:(a)(b);</p>", writeMenu(copy, "o", links,
+				"ab", true));
+		cache.clear();
+		assertEquals("<p>p:(a)(b);</p>", writeMenu(copy, "p", links,
+				"ab", false));
+		assertEquals(4, (int) linkCache.getHitCount());
+		return page;
+	}
+
+	//writes the menu with its links, checking if it was cached:
+	private static String writeMenu(RepBlk page, String title,
+			String[] links, String key, boolean cached)
+			throws IOException {
+		CharArrayWriter out = new CharArrayWriter();
+		page.start(out);
+		RepBlk menu = page.getBlk("menu");
+		RepBlk link = menu.getBlk("link");
+		menu.setVar("t", title);
+		assertTrue(menu.startCached(key) == cached);
+		if (! cached) {
+			for (String l : links)
+				link.setVar("l", l).startCached(null);
+			menu.next();
+		}
+		page.next();
+		page.end();
+		return out.toString();
+	}
+
+	public static void test16Digest() throws IOException {
+
+		String tpl = "<ul><!--rep blk=item--><li>" +
+			"<!--rep var=v place=V-->V</li><!--/rep--></ul>";
+		RepBlk page = new RepBlk(tpl);
+
+		String d1 = digestItems(page, "a", "b");
+		assertEquals(16, d1.length());
+		assertEquals(d1, digestItems(page, "a", "b"));
+		assertEquals(d1, digestItems(page.copy(), "a", "b"));
+		assertEquals(d1, digestItems(new RepBlk(tpl), "a", "b"));
+		assertTrue(! d1.equals(digestItems(page, "a", "c")));
+		assertTrue(! d1.equals(digestItems(page, "ab")));
+		assertTrue(! d1.equals(digestItems(page, "a", "b", "")));
+		String tpl2 = tpl.replace("<li>", "<li class=x>");
+		page = new RepBlk(tpl2);
+		assertTrue(! d1.equals(digestItems(page, "a", "b")));
+		page = new RepBlk(tpl);
+
+		//the page is not written and must be completed:
+		CharArrayWriter out = new CharArrayWriter();
+		page.start(out);
+		page.getBlk("item").skip();
+		page.startDigest();
+		assertTrue(page.getWriter() == null);
+		page.getBlk("item").skip();
+		try {
+			page.getDigest();
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("The page has not been written completely",
+					e.getMessage());
+		}
+		page.next();
+		assertEquals(digestItems(page), page.getDigest());
+		assertEquals("<ul>", out.toString());
+
+		//the pages written normally have no digest:
+		page.start(out);
+		page.getBlk("item").skip();
+		page.next();
+		try {
+			page.getDigest();
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("The page has not been written completely",
+					e.getMessage());
+		}
+	}
+
+	private static String digestItems(RepBlk page, String... values)
+			throws IOException {
+		page.startDigest();
+		RepBlk item = page.getBlk("item");
+		for (String value : values)
+			item.setVar("v", value).start();
+		if (values.length == 0)
+			item.skip();
+		page.next();
+		page.end();
+		return page.getDigest();
+	}
+
+	public static void test17Buffer() throws IOException {
+
+		RepBlk page = new RepBlk("<ul><!--rep blk=item--><li>" +
+			"<!--rep var=v place=V-->V</li><!--/rep--></ul>");
+		assertEquals(19, page.getTextLength());
+		String[] values = { "a", "\u00f1", "\u20ac", "\ud83d\ude00",
+				"\ud83d", "" };
+
+		digestItems(page, values);
+		int length = (int) page.getLength();
+		assertEquals(9 + 9 * values.length + 6, length);
+		RepBuffer buffer = new RepBuffer(length);
+		page.start(buffer);
+		RepBlk item = page.getBlk("item");
+		for (String value : values)
+			item.setVar("v", value).start();
+		page.next();
+		page.end();
+		assertEquals(length, buffer.length());
+
+		String text = buffer.toString();
+		assertEquals(length, text.length());
+		assertTrue(text.startsWith("<ul><li>a</li><li>\u00f1</li>"));
+		Charset utf8 = Charset.forName("UTF-8");
+		assertTrue(Arrays.equals(text.getBytes(utf8),
+				buffer.toUtf8()));
+		Charset latin1 = Charset.forName("ISO-8859-1");
+		assertTrue(Arrays.equals(text.getBytes(latin1),
+				buffer.toBytes(latin1)));
+
+		CharArrayWriter out = new CharArrayWriter();
+		buffer.writeTo(out);
+		assertEquals(text, out.toString());
+
+		//the buffer grows when needed:
+		buffer.reset();
+		buffer.write("abc");
+		buffer.append("def");
+		for (int i = 0; i < length; i++)
+			buffer.write('x');
+		assertEquals(length + 6, buffer.length());
+		assertTrue(buffer.toString().startsWith("abcdefxx"));
+	}
+
+	public static void test18SizeEstimate() throws Exception {
+
+		RepStats stats = new RepStats("p", null);
+		RepBlk page = new RepBlk("<ul><!--rep blk=item--><li>" +
+			"<!--rep var=v place=V-->V</li><!--/rep--></ul>");
+		page.setMonitor(stats);
+		assertEquals(0, stats.getSizeEstimate());
+
+		String[] values = { "a", "bbb" };
+		for (int n = 1; n <= 20; n++) {
+			page.start(new RepBuffer());
+			RepBlk item = page.getBlk("item");
+			for (int i = 0; i < n; i++)
+				item.setVar("v", values[i % 2]).start();
+			page.next();
+		}
+		//the pages have 9 + 11 * n chars, one less when n is odd:
+		assertEquals(229, (int) stats.getPageSizeMax());
+		assertTrue(stats.getPageSizeP50() >= 119);
+		assertTrue(stats.getPageSizeP50() < 119 * 9 / 8);
+		assertTrue(stats.getPageSizeP95() >= 217);
+		assertEquals((int) stats.getPageSizeP95(),
+				stats.getSizeEstimate());
+		assertEquals("{/item=10}", stats.getBlockSizes().toString());
+
+		//the estimate follows the new pages, unlike the percentiles:
+		stats.reset();
+		for (int k = 0; k < 10 * RepStats.SIZE_HALF_LIFE; k++) {
+			int n = k < 4 * RepStats.SIZE_HALF_LIFE ? 20 : 1;
+			page.start(new RepBuffer());
+			RepBlk item = page.getBlk("item");
+			for (int i = 0; i < n; i++)
+				item.setVar("v", values[i % 2]).start();
+			page.next();
+		}
+		assertTrue(stats.getPageSizeP95() >= 217);
+		assertTrue(stats.getSizeEstimate() >= 19);
+		assertTrue(stats.getSizeEstimate() < 19 * 9 / 8);
+
+		File dir = new File("TestRepBlk-temp-dir");
+		File file = new File(dir, "s.tpl.html");
+		dir.mkdir();
+		writeFile(file, "<p><!--rep var=v place=V-->V</p>");
+		RepRegistry reg = new RepRegistry(dir);
+		assertEquals(8, reg.newBuffer("s.tpl.html").capacity());
+		reg.enableStats();
+		page = reg.get("s.tpl.html");
+		page.setVar("v", "0123456789").start(reg.newBuffer(
+				"s.tpl.html"));
+		assertEquals(17, reg.newBuffer("s.tpl.html").capacity());
+		Object value = java.lang.management.ManagementFactory
+			.getPlatformMBeanServer().getAttribute(
+			new javax.management.ObjectName(
+			"rep:type=RepStats,name=\"s.tpl.html\""),
+			"SizeEstimate");
+		assertEquals("17", String.valueOf(value));
+		reg.close();
+		file.delete();
+		dir.delete();
+	}
+
+	public static void test19Minify() throws IOException {
+
+		String tpl = "" +
+			"<html>\n" +
+			"  <body>\n" +
+			"    <!-- menu -->\n" +
+			"    <!--[if IE]><p>IE</p><![endif]-->\n" +
+			"    <ul>\n" +
+			"<!--rep blk=item-->\t\t<li class=\"a  b\">" +
+			"<!--rep var=v place=\"  V  \"-->  V  </li>\n" +
+			"<!--/rep-->    </ul>\n" +
+			"    <PRE>\n  <!-- kept -->\n" +
+			"<!--rep blk=code-->  code\n<!--/rep-->  </pre>\n" +
+			"    <script>\n  a < b;\n  </script>\n" +
+			"  </body>\n" +
+			"</html>\n";
+		RepBlk page = new RepBlk(tpl, RepBlk.OPT_MINIFY);
+		CharArrayWriter out = new CharArrayWriter();
+		page.start(out);
+		page.getBlk("item").setVar("v", "x").start();
+		page.next();
+		page.getBlk("code").start();
+		page.next();
+		page.end();
+		assertEquals("" +
+			"<html>\n" +
+			"<body>\n" +
+			"<!--[if IE]><p>IE</p><![endif]-->\n" +
+			"<ul>\n" +
+			" <li class=\"a  b\">x</li>\n" +
+			" </ul>\n" +
+			"<PRE>\n  <!-- kept -->\n" +
+			"  code\n  </pre>\n" +
+			"<script>\n  a < b;\n  </script>\n" +
+			"</body>\n" +
+			"</html>\n", out.toString());
+
+		//nothing is removed without the option:
+		page = new RepBlk(tpl, 0);
+		out.reset();
+		page.start(out);
+		page.getBlk("item").setVar("v", "x").start();
+		page.next();
+		page.getBlk("code").start();
+		page.next();
+		page.end();
+		assertEquals(tpl.replaceAll("<!--/?rep[^>]*-->", "")
+			.replace("  V  ", "x"), out.toString());
+
+		//the tags and the quoted values of the attributes are kept,
+		//even when they continue after a variable:
+		tpl = "<ul>\n  <li title=\"a\n   b\">1</li>   <li>2</li>\n" +
+			"  <li title='<!--rep var=t place=T-->T\n  x'>\n" +
+			"  3 > 2</li>\n</ul>\n";
+		page = new RepBlk(tpl, RepBlk.OPT_MINIFY);
+		out.reset();
+		page.setVar("t", "T").start(out);
+		page.end();
+		assertEquals("<ul>\n<li title=\"a\n   b\">1</li> <li>2</li>\n" +
+			"<li title='T\n  x'>\n3 > 2</li>\n</ul>\n",
+			out.toString());
+
+		//the whitespace around a block is not removed after a line
+		//break, since the block can be repeated or skipped:
+		tpl = "<p>\n<!--rep blk=w-->  word<!--/rep--></p>\n";
+		for (int options : new int[] { RepBlk.OPT_MINIFY,
+				RepBlk.OPT_MINIFY | RepBlk.OPT_LAZY }) {
+			page = new RepBlk(tpl, options);
+			out.reset();
+			page.start(out);
+			page.getBlk("w").start();
+			page.getBlk("w").start();
+			page.next();
+			page.end();
+			assertEquals("<p>\n word word</p>\n", out.toString());
+			out.reset();
+			page.start(out);
+			page.getBlk("w").skip();
+			page.next();
+			page.end();
+			assertEquals("<p>\n</p>\n", out.toString());
+		}
+
+		try {
+			new RepBlk(tpl, 8);
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("Invalid options", e.getMessage());
+		}
+	}
+
+	public static void test20Compression() throws IOException {
+
+		RepBlk page = new RepBlk("<head>\u00f1</head><ul>" +
+			"<!--rep blk=item--><li><!--rep var=v place=V-->V" +
+			"</li><!--/rep--></ul><!--rep blk=foot-->" +
+			"<p>foot</p><!--/rep-->.");
+		page.setFlushDepth(0);
+		StringBuilder expected = new StringBuilder();
+		for (boolean gzip : new boolean[] { true, false }) {
+			final int[] flushes = new int[1];
+			java.io.ByteArrayOutputStream bytes =
+					new java.io.ByteArrayOutputStream() {
+				public void flush() {
+					flushes[0]++;
+				}
+			};
+			RepDeflateWriter writer = new RepDeflateWriter(bytes,
+					9, gzip);
+			page.start(writer);
+			int size = bytes.size();
+			assertEquals(1, flushes[0]); //after the head
+			RepBlk item = page.getBlk("item");
+			expected.setLength(0);
+			expected.append("<head>\u00f1</head><ul>");
+			for (int i = 0; i < 3000; i++) {
+				String v = (i % 7 == 0 ? "\ud83d\ude00" : "v");
+				item.setVar("v", v + i).start();
+				expected.append("<li>" + v + i + "</li>");
+			}
+			assertEquals(1, flushes[0]);
+			page.next();
+			expected.append("</ul><p>foot</p>.");
+			assertEquals(2, flushes[0]);
+			assertTrue(bytes.size() > size);
+			page.getBlk("foot").start();
+			page.next();
+			page.end();
+			assertEquals(3, flushes[0]); //foot not flushed
+			writer.finish();
+			assertEquals(4, flushes[0]);
+			InputStream in = new java.io.ByteArrayInputStream(
+					bytes.toByteArray());
+			in = (gzip ? new GZIPInputStream(in) :
+					new InflaterInputStream(in));
+			assertEquals(expected.toString(), readUtf8(in));
+			assertTrue(bytes.size() < expected.length() / 5);
+		}
+
+		try {
+			new RepDeflateWriter(
+				new java.io.ByteArrayOutputStream(), 10, true);
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("Invalid compression level",
+					e.getMessage());
+		}
+	}
+
+	public static void test21Precompressed() throws IOException {
+
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			big.append("<p class=\"static\">text " + i + "</p>\n");
+		String tpl = "<html>" + big + "<ul><!--rep blk=item-->" +
+			"<li><!--rep var=v place=V-->V</li>" + big +
+			"<!--/rep--></ul>" + big + "\u00f1</html>";
+		RepBlk plain = new RepBlk(tpl);
+		RepBlk page = new RepBlk(tpl);
+		page.precompress(1000, 9);
+		RepBlk copy = page.copy();
+		String[] values = { "a", "\u20ac", "\ud83d\ude00", "" };
+
+		for (boolean gzip : new boolean[] { true, false }) {
+			byte[][] results = new byte[3][];
+			String[] texts = new String[3];
+			RepBlk[] pages = { plain, page, copy };
+			for (int n = 0; n < 3; n++) {
+				java.io.ByteArrayOutputStream bytes =
+					new java.io.ByteArrayOutputStream();
+				RepDeflateWriter writer = new RepDeflateWriter(
+						bytes, 6, gzip);
+				pages[n].start(writer);
+				RepBlk item = pages[n].getBlk("item");
+				for (String v : values)
+					item.setVar("v", v).start();
+				pages[n].next();
+				writer.close();
+				results[n] = bytes.toByteArray();
+				byte[] result = results[n];
+				InputStream in = new
+					java.io.ByteArrayInputStream(result);
+				in = (gzip ? new GZIPInputStream(in) :
+						new InflaterInputStream(in));
+				texts[n] = readUtf8(in);
+			}
+			assertEquals(texts[0], texts[1]);
+			assertEquals(texts[0], texts[2]);
+			assertTrue(texts[0].startsWith("<html><p class="));
+			assertTrue(texts[0].endsWith("\u00f1</html>"));
+			assertTrue(Arrays.equals(results[1], results[2]));
+			//the texts are only inserted in the gzip format:
+			assertTrue(gzip != Arrays.equals(results[0],
+					results[1]));
+		}
+	}
+
+	public static void test22TextSharing() throws IOException {
+
+		StringBuilder header = new StringBuilder();
+		for (int i = 0; i < 300; i++)
+			header.append("<li><a href=\"/s" + i + "\">" + i +
+					"</a></li>\n");
+		File dir = new File("TestRepBlk-temp-dir");
+		dir.mkdir();
+		String[] names = { "a.tpl.html", "b.tpl.html", "c.tpl.html" };
+		for (int n = 0; n < names.length; n++)
+			writeFile(new File(dir, names[n]), "<title>" + n +
+				"<!--rep var=t place=T-->T</title>" + header +
+				"<!--rep blk=b-->" + header + "<p>" + n +
+				"<!--/rep--></html>");
+		RepRegistry reg = new RepRegistry(dir);
+		long chars = reg.getTextChars();
+		assertTrue(chars > 6 * header.length());
+		assertEquals(0, (int) reg.getSavedTextChars());
+
+		reg.enableTextSharing();
+		assertEquals((int) chars, (int) reg.getTextChars());
+		long saved = reg.getSavedTextChars();
+		assertTrue(saved > 5 * header.length() * 9 / 10);
+		assertTrue(saved < 5 * header.length());
+
+		RepBlk page = reg.get("b.tpl.html");
+		CharArrayWriter out = new CharArrayWriter();
+		page.setVar("t", "x").start(out);
+		page.getBlk("b").start();
+		page.next();
+		assertEquals("<title>1x</title>" + header + header +
+				"<p>1</html>", out.toString());
+
+		reg.close();
+		for (String name : names)
+			new File(dir, name).delete();
+		dir.delete();
+	}
+
+	public static void test23Lazy() throws IOException {
+
+		String tpl = "" +
+			"<html>\n" +
+			"  <!--rep var=t place=TITLE-->TITLE\n" +
+			"  <!--rep blk=admin--><pre>\n" +
+			"    <!--rep var=x place=NOTFOUND-->\n" +
+			"  </pre><!--/rep-->\n" +
+			"  <ul>\n" +
+			"  <!--rep blk=item--><li>\n" +
+			"    <!--rep var=v place=V-->V\n" +
+			"    <!--rep blk=tag--> <!--rep var=n place=N-->N" +
+			"<!--/rep-->\n" +
+			"  </li><!--/rep-->\n" +
+			"  </ul>\n" +
+			"</html>\n";
+		RepBlk eager = new RepBlk(tpl.replace(
+				"<!--rep var=x place=NOTFOUND-->", ""),
+				RepBlk.OPT_MINIFY);
+		RepBlk page = new RepBlk(tpl,
+				RepBlk.OPT_LAZY | RepBlk.OPT_MINIFY);
+		RepBlk copy = page.copy();
+		String digest = digestLazy(page);
+		assertEquals(writeLazy(eager), writeLazy(page));
+		assertEquals(writeLazy(eager), writeLazy(copy));
+		assertEquals(writeLazy(eager), writeLazy(page.copy()));
+		assertEquals(digest, digestLazy(copy));
+		assertEquals(digest, digestLazy(new RepBlk(tpl,
+				RepBlk.OPT_LAZY | RepBlk.OPT_MINIFY)));
+
+		//the lazy blocks minified have other digest, since their
+		//texts are different, even if the rest of the page is equal:
+		String[] digests = new String[2];
+		for (int i = 0; i < digests.length; i++) {
+			RepBlk p = new RepBlk("<p><!--rep blk=b--><i>\n   x" +
+				"</i><!--/rep--></p>", RepBlk.OPT_LAZY |
+				(i == 0 ? 0 : RepBlk.OPT_MINIFY));
+			p.startDigest();
+			p.getBlk("b").skip();
+			p.next();
+			digests[i] = p.getDigest();
+		}
+		assertTrue(! digests[0].equals(digests[1]));
+
+		//the errors in the blocks are found when they are used:
+		page.start(new CharArrayWriter());
+		try {
+			page.getBlk("admin").start();
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("One or more variables not found in " +
+					"block: x", e.getMessage());
+		}
+		tryNew("<!--rep blk=a--><!--rep blk=b--><!--/rep-->",
+			"One or more blocks have not been closed: a");
+		try {
+			new RepBlk("<!--rep blk=a--><!--rep blk=b-->" +
+				"<!--/rep-->", RepBlk.OPT_LAZY);
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("One or more blocks have not been " +
+					"closed: a", e.getMessage());
+		}
+	}
+
+	//writes the page of test23Lazy without using the block admin:
+	private static String writeLazy(RepBlk page) throws IOException {
+		CharArrayWriter out = new CharArrayWriter();
+		page.setVar("t", "T").start(out);
+		page.getBlk("admin").skip();
+		page.next();
+		RepBlk item = page.getBlk("item");
+		RepBlk tag = item.getBlk("tag");
+		for (int i = 0; i < 3; i++) {
+			item.setVar("v", "v" + i).start();
+			if (i == 0)
+				tag.skip();
+			for (int j = 0; j < i; j++)
+				tag.setVar("n", "n" + j).start();
+			item.next();
+		}
+		page.next();
+		page.end();
+		return out.toString();
+	}
+
+	private static String digestLazy(RepBlk page) throws IOException {
+		page.setVar("t", "T").startDigest();
+		page.getBlk("admin").skip();
+		page.next();
+		page.getBlk("item").skip();
+		page.next();
+		return page.getDigest();
+	}
+
+	public static void test24Parallel() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			sb.append("<p>Line ").append(i).append("</p>\n");
+		String lines = sb.toString();
+		String tpl = "<html>\n<!--rep var=t place=TITLE-->TITLE\n";
+		for (String name : new String[] { "a", "b", "c", "d" })
+			tpl += "<!--rep blk=" + name + "--><div>\n" +
+				"<!--rep var=v place=V-->V\n" +
+				(name.equals("d") ? "" : lines) +
+				"<!--rep blk=sub--><!--rep var=n place=N-->" +
+				"N<!--/rep--></div><!--/rep-->\n";
+		tpl += "</html>\n";
+		RepBlk serial = new RepBlk(tpl, RepBlk.OPT_MINIFY);
+		RepBlk page = new RepBlk(tpl,
+				RepBlk.OPT_PARALLEL | RepBlk.OPT_MINIFY);
+		assertEquals(writeParallel(serial), writeParallel(page));
+		assertEquals(writeParallel(serial),
+				writeParallel(page.copy()));
+		assertEquals(serial.getTextLength(), page.getTextLength());
+
+		//the first error in the template is always reported:
+		String[] errors = {
+			tpl.replace("<!--rep var=v place=V-->V",
+				"<!--rep var=v place=X-->V"),
+			tpl.replace("</html>", "<!--/rep--></html>")
+				.replace("blk=b--><div>\n<!--rep var=v",
+				"blk=b--><div>\n<!--rep v"),
+			tpl.replace("<!--rep blk=c-->", "<!--rep blk=a-->"),
+			tpl.replace("<!--rep blk=d-->", "<!--rep blk=d-->" +
+				"<!--rep blk=e-->"),
+			tpl.replace("<!--rep blk=d-->", "<!--rep blk=d--" +
+				"<!--rep blk=e-->"),
+		};
+		for (String error : errors)
+			assertEquals(parseError(error, 0), parseError(error,
+					RepBlk.OPT_PARALLEL));
+	}
+
+	public static void test25Pool() throws IOException {
+		RepBlk tpl = new RepBlk("<!--rep var=v place=V-->V:" +
+			"<!--rep blk=a--><!--rep var=w place=W-->W" +
+			"<!--/rep-->.");
+		RepStats stats = new RepStats("p", null);
+		tpl.setMonitor(stats);
+		RepPool pool = new RepPool(tpl, 1);
+		RepBlk page = pool.acquire();
+		CharArrayWriter out = new CharArrayWriter();
+		page.setVar("v", "1").start(out);
+		page.getBlk("a").setVar("w", "2").start();
+		page.next();
+		page.end();
+		assertEquals("1:2.", out.toString());
+		assertEquals(1, pool.getBusyCount());
+		pool.release(page);
+		assertEquals(0, pool.getBusyCount());
+		assertEquals(1, pool.getIdleCount());
+
+		//the same copy is reused with the initial values:
+		assertTrue(pool.acquire() == page);
+		out = new CharArrayWriter();
+		page.start(out);
+		page.getBlk("a").start();
+		pool.release(page); //page aborted
+		assertEquals(1, (int) stats.getRendersAborted());
+		page = pool.acquire();
+		page.start(out);
+		page.getBlk("a").start();
+		page.next();
+		page.end();
+		assertEquals("V:W" + "V:W.", out.toString());
+		assertEquals(1, (int) pool.getCreatedCount());
+
+		//only copies acquired from the pool can be released once:
+		RepBlk second = pool.acquire();
+		assertEquals(2, pool.getBusyCount(0));
+		assertEquals(0, pool.getBusyCount(60000));
+		pool.release(second);
+		pool.release(page);
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(2, (int) pool.getCreatedCount());
+		for (RepBlk blk : new RepBlk[] { page, tpl.copy() }) {
+			try {
+				pool.release(blk);
+				throw new IllegalStateException("not thrown");
+			}
+			catch (IllegalArgumentException e) {
+				assertEquals("The block has not been " +
+					"acquired from this pool",
+					e.getMessage());
+			}
+		}
+		page = pool.acquire();
+		try {
+			pool.release(page.getBlk("a"));
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("This method cannot be used on this " +
+					"block", e.getMessage());
+		}
+
+		//the copies not released are found when they are collected:
+		pool = new RepPool(tpl, 1);
+		pool.acquire();
+		for (int i = 0; i < 100 && pool.getLeakCount() == 0; i++) {
+			System.gc();
+			try { Thread.sleep(10); }
+			catch (InterruptedException e) { }
+		}
+		assertEquals(1, (int) pool.getLeakCount());
+		assertEquals(0, pool.getBusyCount());
+	}
+
+	public static void test26Names() throws IOException {
+		//"Aa" and "BB" have the same hash code:
+		String[] names = { "Aa", "BB", "a", "b", "c", "title", "x1",
+			"x2", "x3", "x4", "x5", "AaAa", "BBBB", "AaBB" };
+		String tpl = "";
+		for (String name : names)
+			tpl += "<!--rep var=" + name + " place=[" + name +
+				"]-->[" + name + "]<!--rep blk=" + name +
+				"-->" + name + "<!--/rep-->";
+		RepBlk page = new RepBlk(tpl);
+		for (RepBlk blk : new RepBlk[] { page, page.copy() }) {
+			CharArrayWriter out = new CharArrayWriter();
+			StringBuilder expected = new StringBuilder();
+			for (String name : names)
+				blk.setVar(name, name + "=");
+			blk.setVar("y", "none").start(out);
+			for (int i = 0; i < names.length; i++) {
+				String name = names[i];
+				expected.append(name).append('=');
+				expected.append(name);
+				assertTrue(blk.getBlk(name) == blk.getBlk(i));
+				blk.getBlk(name).start();
+				blk.next();
+			}
+			blk.end();
+			assertEquals(expected.toString(), out.toString());
+			assertTrue(blk.getBlk("y") == null);
+			assertTrue(blk.getBlk("AaAaAa") == null);
+			assertTrue(blk.getBlk(null) == null);
+		}
+	}
+
+	public static void test27Recording() throws Exception {
+		String tpl = "<h1><!--rep var=t place=TITLE-->TITLE</h1>\n" +
+			"<ul><!--rep blk=item-->\n<li>" +
+			"<!--rep var=v place=V-->V" +
+			"<!--rep blk=tag--> [<!--rep var=n place=N-->N]" +
+			"<!--/rep--></li><!--/rep-->\n</ul>\n";
+		RepBlk page = new RepBlk(tpl);
+		CharArrayWriter out = new CharArrayWriter();
+		page.setVar("t", "\u00e1").start(out);
+		recordItems(page);
+		String expected = out.toString();
+		assertEquals("<h1>\u00e1</h1>\n<ul>\n<li>v0</li>\n<li>v1" +
+			" [n0]</li>\n<li>v2 [n0] [n1]</li>\n</ul>\n",
+			expected);
+
+		final RepBlk copy = page.copy();
+		copy.setVar("t", "\u00e1").startRecording();
+		recordItems(copy);
+		assertEquals(expected.length(), (int) copy.getLength());
+		final RepRecording recording = copy.getRecording();
+		copy.startRecording();
+		tryNext(copy.getBlk("item"), "Operation not allowed " +
+				"now on this block");
+
+		//replayed in other thread with other copy:
+		final CharArrayWriter replayed = new CharArrayWriter();
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					recording.replay(copy.copy(),
+							replayed);
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals(expected, replayed.toString());
+		out = new CharArrayWriter();
+		new RepRecording(recording.toByteArray()).replay(
+				new RepBlk(tpl), out);
+		assertEquals(expected, out.toString());
+		assertTrue(recording.size() < expected.length());
+
+		//the blocks are found by their names, even with a separator:
+		RepBlk odd = new RepBlk("<!--rep blk=a/%2F-->x<!--/rep-->.");
+		odd.startRecording();
+		odd.getBlk("a/%2F").start();
+		odd.next();
+		out = new CharArrayWriter();
+		odd.getRecording().replay(odd.copy(), out);
+		assertEquals("x.", out.toString());
+
+		try {
+			recording.replay(new RepBlk(tpl + "."), out);
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("The recording is for other template",
+					e.getMessage());
+		}
+		copy.startRecording();
+		try {
+			copy.getRecording();
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("The page has not been written " +
+					"completely", e.getMessage());
+		}
+	}
+
+	public static void test28Tee() throws IOException {
+		RepBlk page = new RepBlk("<!--rep var=t place=T-->T:" +
+			"<!--rep blk=item-->[<!--rep var=v place=V-->V]" +
+			"<!--/rep-->.");
+		RepStats stats = new RepStats("p", null);
+		page.setMonitor(stats);
+		CharArrayWriter main = new CharArrayWriter();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ByteArrayOutputStream channel = new ByteArrayOutputStream();
+		CharArrayWriter copy = new CharArrayWriter();
+		RepTeeWriter tee = new RepTeeWriter(main);
+		assertEquals(0, tee.addSink(stream));
+		assertEquals(1, tee.addSink(new Writer() { //fails soon
+			int count;
+			public void write(char[] cbuf, int off, int len)
+					throws IOException {
+				if ((count += len) > 4)
+					throw new IOException("disk full");
+			}
+			public void flush() { }
+			public void close() { }
+		}));
+		assertEquals(2, tee.addSink(Channels.newChannel(channel)));
+		assertEquals(3, tee.addSink(copy));
+		page.setVar("t", "\u00e1").start(tee);
+		RepBlk item = page.getBlk("item");
+		for (int i = 0; i < 3; i++)
+			item.setVar("v", "v" + i).start();
+		page.next();
+		page.end();
+		String expected = "\u00e1:[v0][v1][v2].";
+		assertEquals(expected, main.toString());
+		assertEquals(expected, copy.toString());
+		assertEquals(expected, new String(stream.toByteArray(),
+				"UTF-8"));
+		assertEquals(expected, new String(channel.toByteArray(),
+				"UTF-8"));
+		assertEquals(1, tee.getFailureCount());
+		assertEquals("disk full", tee.getFailure(1).getMessage());
+		assertTrue(tee.getFailure(0) == null);
+		assertEquals(1, (int) stats.getRendersCompleted());
+		assertEquals(0, (int) stats.getRendersAborted());
+	}
+
+	public static void test29Batch() throws Exception {
+		RepBlk tpl = new RepBlk("<!--rep var=t place=T-->T:" +
+			"<!--rep blk=item-->[<!--rep var=v place=V-->V]" +
+			"<!--/rep-->.\n");
+		File dir = new File("TestRepBlk-temp-dir");
+		ArrayList<RepBatch.Page> pages = new ArrayList<RepBatch.Page>();
+		for (int i = 0; i < 40; i++)
+			pages.add(new BatchPage("d" + (i % 2) + "/p" + i, i));
+		RepBatch batch = new RepBatch(tpl, dir, 4, 2);
+		batch.generate(pages);
+		assertEquals(40, (int) batch.getPageCount());
+		long bytes = 0;
+		for (int i = 0; i < 40; i++) {
+			File file = new File(dir, "d" + (i % 2) + "/p" + i);
+			bytes += file.length();
+			String text = readUtf8(new FileInputStream(file));
+			assertEquals(text, (i % 3 == 0 ? "T:" : "\u00e1" + i +
+				":") + "[0][1][2].\n".substring(0, i % 4 * 3) +
+				".\n");
+			file.delete();
+		}
+		assertEquals((int) bytes, (int) batch.getByteCount());
+		assertTrue(batch.getPagesPerSecond() > 0);
+		assertTrue(batch.getBytesPerSecond() > 0);
+
+		//the blocks of a template with OPT_LAZY are parsed before
+		//copying it in the threads:
+		RepBlk lazy = new RepBlk("<!--rep var=t place=T-->T:" +
+			"<!--rep blk=item-->[<!--rep var=v place=V-->V]" +
+			"<!--/rep-->.\n", RepBlk.OPT_LAZY);
+		batch = new RepBatch(lazy, dir, 4, 2);
+		batch.generate(pages);
+		for (int i = 0; i < 40; i++) {
+			File file = new File(dir, "d" + (i % 2) + "/p" + i);
+			String text = readUtf8(new FileInputStream(file));
+			assertEquals(text, (i % 3 == 0 ? "T:" : "\u00e1" + i +
+				":") + "[0][1][2].\n".substring(0, i % 4 * 3) +
+				".\n");
+			file.delete();
+		}
+
+		//the first error is thrown after generating the other pages:
+		batch = new RepBatch(tpl, dir, 2, 1);
+		batch.submit(new BatchPage("../p", 0));
+		batch.submit(new BatchPage("d0/p", 0));
+		try {
+			batch.finish();
+			throw new IllegalStateException("not thrown");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("Invalid path of page: ../p",
+					e.getMessage());
+		}
+		assertEquals(1, (int) batch.getPageCount());
+		assertTrue(new File(dir, "d0/p").delete());
+		new File(dir, "d0").delete();
+		new File(dir, "d1").delete();
+		dir.delete();
+	}
+
+	public static void test30Fingerprints() throws Exception {
+		RepBlk tpl = new RepBlk("<!--rep var=t place=T-->T:" +
+			"<!--rep blk=item-->[<!--rep var=v place=V-->V]" +
+			"<!--/rep-->.\n");
+		File dir = new File("TestRepBlk-temp-dir");
+		File prints = new File("TestRepBlk-temp-prints");
+		int[] changes = { 0, 0, 0 };
+		for (int run = 0; run < changes.length; run++) {
+			ArrayList<RepBatch.Page> pages =
+					new ArrayList<RepBatch.Page>();
+			for (int i = 0; i < 10; i++)
+				pages.add(new BatchPage("p" + i, i +
+					(run == 1 && i == 3 ? 4 : 0)));
+			RepBatch batch = new RepBatch(tpl, dir, 3, 3);
+			batch.setFingerprints(prints);
+			batch.generate(pages);
+			changes[run] = (int) batch.getPageCount();
+			assertEquals(10 - changes[run],
+					(int) batch.getSkippedCount());
+			if (run == 0)
+				new File(dir, "p0").setLastModified(1000);
+			if (run == 1)
+				assertTrue(new File(dir, "p5").delete());
+		}
+		//p3 changed and restored, and p5 deleted:
+		assertEquals("10,1,2", changes[0] + "," + changes[1] + "," +
+				changes[2]);
+		assertEquals(1000, (int) new File(dir, "p0").lastModified());
+		assertEquals("T:[0][1][2].\n", readUtf8(
+				new FileInputStream(new File(dir, "p3"))));
+		assertEquals("\u00e15:[0].\n", readUtf8(
+				new FileInputStream(new File(dir, "p5"))));
+
+		//the pages that cannot be recorded are always written:
+		final BatchPage recorded = new BatchPage("p3", 3);
+		RepBatch batch = new RepBatch(tpl, dir, 1, 1);
+		batch.setFingerprints(prints);
+		batch.submit(new RepBatch.Page() {
+			public String getPath() {
+				return recorded.getPath();
+			}
+
+			public void write(RepBlk page, Writer writer)
+					throws IOException {
+				writer.write("<!DOCTYPE html>");
+				recorded.write(page, writer);
+			}
+		});
+		batch.finish();
+		assertEquals(1, (int) batch.getPageCount());
+		assertEquals(0, (int) batch.getSkippedCount());
+		assertEquals("<!DOCTYPE html>T:[0][1][2].\n", readUtf8(
+				new FileInputStream(new File(dir, "p3"))));
+		for (int i = 0; i < 10; i++)
+			new File(dir, "p" + i).delete();
+		dir.delete();
+		prints.delete();
+	}
+
+	public static void test31Data() throws Exception {
+		RepBlk tpl = new RepBlk("<!--rep var=t place=T-->T:" +
+			"<!--rep blk=item-->[<!--rep var=v place=V-->V" +
+			"<!--rep blk=sub-->(<!--rep var=w place=W-->W)" +
+			"<!--/rep-->]<!--/rep-->.\n");
+		RepData data = RepData.jsonLines(new StringReader(
+			"{\"t\": \"a\\u00e1\\\"\", \"item\": [{\"v\": 1," +
+			" \"sub\": {\"w\": true}}, {\"v\": \"x\"}]}\n\n" +
+			"{\"t\": null, \"item\": [], \"n\": [1, -2.5e3]}\n"));
+		CharArrayWriter out = new CharArrayWriter();
+		Map<String, Object> record;
+		while ((record = data.next()) != null)
+			RepData.write(tpl.copy(), out, record);
+		assertEquals("a\u00e1\":[1(true)][x].\nT:.\n", out.toString());
+
+		//repetitions from CSV with quoted values and line breaks:
+		tpl = new RepBlk("<!--rep blk=row--><!--rep var=a place=A-->A" +
+			",<!--rep var=b place=B-->B;<!--/rep-->.");
+		data = RepData.csv(new StringReader("a,b\n1,\"x,\"\"y\"\"\n" +
+			"z\"\n2\n,3,4\n"));
+		out.reset();
+		tpl.start(out);
+		assertEquals(3, (int) RepData.write(tpl.getBlk(0), data));
+		tpl.next();
+		tpl.end();
+		assertEquals("1,x,\"y\"\nz;2,B;,3;.", out.toString());
+		out.reset();
+		tpl.start(out);
+		RepData.write(tpl.getBlk(0), RepData.csv(new StringReader("")));
+		tpl.next();
+		tpl.end();
+		assertEquals(".", out.toString());
+
+		String msg = null;
+		data = RepData.jsonLines(new StringReader("{}\n{\"a\": x}"));
+		data.next();
+		try { data.next(); }
+		catch (IllegalArgumentException e) { msg = e.getMessage(); }
+		assertEquals("Invalid JSON at line 2", msg);
+	}
+
+	public static void test32Load() throws Exception {
+		RepBlk tpl = new RepBlk("<!--rep var=t place=T-->T:" +
+			"<!--rep blk=item-->[<!--rep var=v place=V-->V]" +
+			"<!--/rep-->.\n");
+		List<Map<String, Object>> records = Collections.singletonList(
+				RepData.jsonLines(new StringReader(
+				"{\"t\": \"\u00e1\"}")).next());
+		int[] sinks = { RepLoad.SINK_NULL, RepLoad.SINK_STREAM,
+				RepLoad.SINK_FILE };
+		//"T:[V].\n" in chars, or "\u00e1:.\n" in UTF-8 bytes:
+		int[] lengths = { 7, 5, 5 };
+		for (int i = 0; i < sinks.length; i++) {
+			RepLoad load = new RepLoad(Arrays.asList(tpl, tpl),
+					(i == 0 ? null : records));
+			load.setThreads(2);
+			load.setSink(sinks[i]);
+			load.run(10, 50);
+			long pages = load.getPageCount();
+			assertTrue(pages > 0);
+			assertEquals((int) pages * lengths[i],
+					(int) load.getOutputCount());
+			assertTrue(load.getPagesPerSecond() > 0);
+			assertTrue(load.getLatency(0.5) <=
+					load.getLatency(0.999));
+			assertTrue(load.getLatency(0.999) <=
+					load.getMaxLatency());
+			assertTrue(load.getReport().contains(" p99.9 "));
+			assertTrue(load.getReport().contains(i == 0 ?
+					" Mchars/s, " : " MB/s, "));
+		}
+		try {
+			new RepLoad(Arrays.asList(tpl), null).setVirtual(true);
+		}
+		catch (UnsupportedOperationException e) {
+			//not supported by this JVM
+		}
+	}
+
+	public static void test33Stress() throws Exception {
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 300; i++)
+			big.append("<p>  text " + i + "</p>\n");
+		String tpl = "0<!--rep var=v place=V-->V\n" +
+			"<!--rep blk=1-->1<!--rep var=v place=V-->V\n" + big +
+				"<!--rep blk=2-->2<!--rep var=v place=V-->V" +
+				"<!--/rep-->1.0\n" +
+				"<!--rep blk=3-->3<!--rep var=v place=V-->V" +
+				"<!--/rep-->1.1\n" +
+			"<!--/rep-->0.0\n" + big +
+			"<!--rep blk=4-->4<!--rep var=v place=V-->V\n" +
+			"<!--/rep-->0.1\n";
+		int[] options = { 0, RepBlk.OPT_MINIFY, RepBlk.OPT_LAZY,
+				RepBlk.OPT_PARALLEL | RepBlk.OPT_MINIFY };
+		final int seeds = 400;
+		int finished = 0;
+		for (int option : options) {
+			final RepBlk template = new RepBlk(tpl, option);
+			template.precompress(1000, 6);
+			//each seed rendered alone with a new copy:
+			final String[] expected = new String[seeds];
+			for (int seed = 0; seed < seeds; seed++) {
+				expected[seed] = stressScript(template.copy(),
+						seed);
+				if (expected[seed].contains(";e;|"))
+					finished++;
+			}
+			//all the seeds rendered by each thread in other order,
+			//with copies shared by the threads through a pool:
+			final RepPool pool = new RepPool(template, 4);
+			final AtomicReference<String> failure =
+					new AtomicReference<String>();
+			Thread[] threads = new Thread[8];
+			for (int t = 0; t < threads.length; t++) {
+				final int first = t * seeds / threads.length;
+				threads[t] = new Thread() {
+					public void run() {
+						for (int i = 0; i < seeds; i++)
+							stressSeed(pool, (first
+							+ i) % seeds, expected,
+							failure);
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			if (failure.get() != null)
+				throw new IllegalStateException(failure.get());
+			assertEquals(0, pool.getBusyCount());
+		}
+		assertTrue(finished > options.length * seeds / 10);
+	}
+
+	//Renders the seed with a copy of the pool, keeping the first
+	//difference with the expected result:
+	private static void stressSeed(RepPool pool, int seed,
+			String[] expected, AtomicReference<String> failure) {
+		RepBlk page = pool.acquire();
+		try {
+			String result = stressScript(page, seed);
+			if (! result.equals(expected[seed]))
+				failure.compareAndSet(null, "seed " + seed +
+					"\nexpected: " + expected[seed] +
+					"\nactual: " + result);
+		}
+		catch (Exception e) {
+			failure.compareAndSet(null, "seed " + seed + ": " + e);
+		}
+		finally {
+			pool.release(page);
+		}
+	}
+
+	//Makes on the page (with the blocks of test7OrderExceptions and a
+	//variable v in each one) a random sequence of calls given by the seed,
+	//allowed or not, until the page ends, and returns the operations with
+	//the messages of their exceptions and the written page, which is also
+	//compressed with gzip for some seeds to check the precompressed texts:
+	private static String stressScript(RepBlk page, long seed)
+			throws IOException {
+		Random random = new Random(seed);
+		RepBlk[] blocks = { page, page.getBlk("1"),
+			page.getBlk("1").getBlk("2"),
+			page.getBlk("1").getBlk("3"), page.getBlk("4") };
+		String[] values = { "a", "\u00e1<", "\ud83d\ude00", "",
+				"\n b" };
+		String ops = "vvsssnnnke"; //setVar, start, next, skip, end
+		boolean gzip = (seed % 4 == 0);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Writer out = (gzip ? new RepDeflateWriter(bytes) :
+				new RepBuffer());
+		StringBuilder trace = new StringBuilder();
+		boolean ended = false;
+		for (int step = 0; step < 300 && ! ended; step++) {
+			RepBlk blk = blocks[random.nextInt(blocks.length)];
+			char op = ops.charAt(random.nextInt(ops.length()));
+			trace.append(op);
+			try {
+				if (op == 'v')
+					blk.setVar("v", values[random.nextInt(
+						values.length)]);
+				else if (op == 's' && blk == page)
+					page.start(out);
+				else if (op == 's')
+					blk.start();
+				else if (op == 'n')
+					blk.next();
+				else if (op == 'k')
+					blk.skip();
+				else {
+					page.end();
+					ended = true;
+				}
+			}
+			catch (IllegalStateException e) {
+				trace.append(":" + e.getMessage());
+			}
+			trace.append(';');
+		}
+		trace.append('|');
+		if (! gzip)
+			return trace + out.toString();
+		((RepDeflateWriter) out).finish();
+		return trace + new String(bytes.toByteArray(), "ISO-8859-1");
+	}
+
+	//page of test29Batch with the variable t in some pages and the given
+	//number of items modulo 4:
+	private static final class BatchPage implements RepBatch.RecordedPage {
+		final String path;
+		final int n;
+
+		BatchPage(String path, int n) {
+			this.path = path;
+			this.n = n;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public void write(RepBlk page, Writer writer)
+				throws IOException {
+			if (n % 3 != 0)
+				page.setVar("t", "\u00e1" + n);
+			page.start(writer);
+			writeItems(page);
+		}
+
+		public void record(RepBlk page) throws IOException {
+			if (n % 3 != 0)
+				page.setVar("t", "\u00e1" + n);
+			page.startRecording();
+			writeItems(page);
+		}
+
+		private void writeItems(RepBlk page) throws IOException {
+			RepBlk item = page.getBlk("item");
+			if (n % 4 == 0)
+				item.skip();
+			for (int i = 0; i < n % 4; i++)
+				item.setVar("v", "" + i).start();
+			page.next();
+			page.end();
+		}
+	}
+
+	//processes the page of test27Recording:
+	private static void recordItems(RepBlk page) throws IOException {
+		RepBlk item = page.getBlk("item");
+		RepBlk tag = item.getBlk("tag");
+		for (int i = 0; i < 3; i++) {
+			item.setVar("v", "v" + i).start();
+			if (i == 0)
+				tag.skip();
+			for (int j = 0; j < i; j++)
+				tag.setVar("n", "n" + j).start();
+			item.next();
+		}
+		page.next();
+		page.end();
+	}
+
+	//writes the page of test24Parallel with one repetition per block:
+	private static String writeParallel(RepBlk page) throws IOException {
+		CharArrayWriter out = new CharArrayWriter();
+		page.setVar("t", "T").start(out);
+		for (String name : page.getBlkNames()) {
+			RepBlk blk = page.getBlk(name);
+			blk.setVar("v", name).start();
+			blk.getBlk("sub").setVar("n", name + "1").start();
+			blk.next();
+			page.next();
+		}
+		page.end();
+		return out.toString();
+	}
+
+	private static String parseError(String tpl, int options) {
+		try {
+			new RepBlk(tpl, options);
+			return null;
+		}
+		catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static String readUtf8(InputStream in) throws IOException {
+		java.io.Reader reader = new java.io.InputStreamReader(in,
+				"UTF-8");
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = reader.read()) != -1)
+			sb.append((char) c);
+		reader.close();
+		return sb.toString();
+	}
+
 	private static String joinStringSet(Set<String> set, String sep) {
 		ArrayList<String> list = new ArrayList<String>(set);
 		Collections.sort(list);
@@ -0,0 +1,349 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RepBatch generates many pages of a template as files in a directory,
+ * using several threads, for example to generate a static site.
+ *
+ * <p>Each page is given as a Page, which names its file and writes it with
+ * a copy of the template, and it is generated by one of the threads of the
+ * RepBatch. Each thread keeps its own copy of the template, which is reset
+ * before each page like a new copy, its own RepBuffer to write the page
+ * and its own buffer to encode it as UTF-8, which is written to the file
+ * with a FileChannel. The method submit waits when the given number of
+ * pages are waiting to be generated, so the pages can be produced while
+ * they are generated without keeping all of them in memory.</p>
+ *
+ * <p>With setFingerprints, each RecordedPage is first recorded, without
+ * writing it, and it is only written if the fingerprint of its recording,
+ * which depends on the template, the values of the variables and the
+ * blocks written, has changed since the last batch or its file does not
+ * exist. The files of the pages not changed are not modified at all. The
+ * other pages are always written.</p>
+ *
+ * <p>The first error of the pages is thrown by finish, after generating
+ * the rest of them. The number of pages and bytes written, and their rates
+ * per second, can be read at any time.</p>
+ */
+public class RepBatch {
+
+	private static final String
+	ERR_INVALID_SIZE = "The number of threads and pages must be positive",
+	ERR_INVALID_PATH = "Invalid path of page",
+	ERR_FINISHED = "The batch has been finished",
+	ERR_STARTED = "The batch has been started";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A page to be generated by a RepBatch.
+	 */
+	public interface Page {
+
+		/**
+		 * Returns the path of the file of the page, relative to the
+		 * directory of the RepBatch, like "list/page2.html".
+		 */
+		String getPath();
+
+		/**
+		 * Writes the page with the given initial block, which has the
+		 * initial values, calling start with the given Writer and
+		 * finishing the page.
+		 */
+		void write(RepBlk page, Writer writer) throws IOException;
+	}
+
+	/**
+	 * A page that can be skipped when it has not changed, with
+	 * setFingerprints.
+	 */
+	public interface RecordedPage extends Page {
+
+		/**
+		 * Records the page with the given initial block, which has the
+		 * initial values, calling startRecording instead of start and
+		 * then making the same calls made by write.
+		 */
+		void record(RepBlk page) throws IOException;
+	}
+
+	//objects used by each thread for all its pages:
+	private static final class Worker {
+		final RepBlk page;
+		final RepBuffer buffer;
+		ByteBuffer bytes;
+
+		Worker(RepBlk page, int capacity) {
+			this.page = page;
+			buffer = new RepBuffer(capacity);
+		}
+	}
+
+	private final RepBlk template;
+	private final int capacity; //of the buffers of the workers
+	private final Path dir;
+	private final ExecutorService executor;
+	private final Semaphore permits; //pages that can be submitted
+	private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+	private final AtomicReference<Exception> failure =
+			new AtomicReference<Exception>();
+	private final LongAdder pages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private Path printsFile; //file of the fingerprints, or null
+	//fingerprints of the last batch and of this one by path of page:
+	private final Map<String, String> oldPrints =
+			new ConcurrentHashMap<String, String>();
+	private final Map<String, String> newPrints =
+			new ConcurrentHashMap<String, String>();
+	private volatile boolean started; //a page has been submitted
+	private final long startTime = System.nanoTime();
+	private volatile long endTime; //0 until finished
+
+	/**
+	 * Creates a batch that writes the pages of the given template in the
+	 * given directory, with the given number of threads, keeping at most
+	 * the given number of pages waiting. A template with OPT_LAZY is
+	 * parsed completely here, before it is copied by the threads.
+	 */
+	public RepBatch(RepBlk template, File dir, int threads,
+			int maxWaiting) {
+		if (threads < 1 || maxWaiting < 1)
+			throw new IllegalArgumentException(ERR_INVALID_SIZE);
+		this.template = template;
+		//parses all the blocks of a template with OPT_LAZY here, so
+		//the workers only read the template to copy it:
+		capacity = template.getTextLength();
+		this.dir = dir.toPath().toAbsolutePath().normalize();
+		executor = Executors.newFixedThreadPool(threads);
+		permits = new Semaphore(threads + maxWaiting);
+	}
+
+	/**
+	 * Adds a page to be generated, waiting while there are too many pages
+	 * waiting.
+	 */
+	public void submit(final Page page) throws InterruptedException {
+		if (endTime != 0 || executor.isShutdown())
+			throw new IllegalStateException(ERR_FINISHED);
+		started = true;
+		permits.acquire();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						generate(page);
+					}
+					catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+					finally {
+						permits.release();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Skips the RecordedPages that have not changed since the last batch
+	 * that used the same file of fingerprints, which is read now and
+	 * written by finish with the fingerprints of the RecordedPages of this
+	 * batch that were generated without errors. It must be called before
+	 * adding pages.
+	 */
+	public void setFingerprints(File file) throws IOException {
+		if (started)
+			throw new IllegalStateException(ERR_STARTED);
+		printsFile = file.toPath();
+		oldPrints.clear();
+		if (! file.exists())
+			return;
+		for (String line : Files.readAllLines(printsFile, UTF8)) {
+			int sep = line.indexOf(' ');
+			if (sep > 0)
+				oldPrints.put(line.substring(sep + 1),
+						line.substring(0, sep));
+		}
+	}
+
+	/**
+	 * Adds all the given pages and finishes the batch.
+	 */
+	public void generate(Iterable<? extends Page> pages)
+			throws IOException, InterruptedException {
+		for (Page page : pages)
+			submit(page);
+		finish();
+	}
+
+	/**
+	 * Waits until all the pages are generated and stops the threads,
+	 * throwing the first error found generating the pages.
+	 */
+	public void finish() throws IOException, InterruptedException {
+		executor.shutdown();
+		while (! executor.awaitTermination(1, TimeUnit.SECONDS))
+			;
+		if (endTime == 0) {
+			endTime = System.nanoTime();
+			if (printsFile != null)
+				writePrints();
+		}
+		Exception e = failure.get();
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e != null)
+			throw (RuntimeException) e;
+	}
+
+	/**
+	 * Returns the number of pages written.
+	 */
+	public long getPageCount() {
+		return pages.sum();
+	}
+
+	/**
+	 * Returns the number of pages not written because they have not
+	 * changed, with setFingerprints.
+	 */
+	public long getSkippedCount() {
+		return skipped.sum();
+	}
+
+	/**
+	 * Returns the number of bytes written in the files.
+	 */
+	public long getByteCount() {
+		return bytes.sum();
+	}
+
+	/**
+	 * Returns the pages written per second since the batch was created
+	 * until it was finished.
+	 */
+	public double getPagesPerSecond() {
+		return perSecond(pages.sum());
+	}
+
+	/**
+	 * Returns the bytes written per second since the batch was created
+	 * until it was finished.
+	 */
+	public double getBytesPerSecond() {
+		return perSecond(bytes.sum());
+	}
+
+	private double perSecond(long count) {
+		long end = endTime;
+		long nanos = (end != 0 ? end : System.nanoTime()) - startTime;
+		return (nanos > 0 ? count * 1e9 / nanos : 0);
+	}
+
+	//Writes the page in the thread that generates it:
+	private void generate(Page page) throws IOException {
+		Path file = dir.resolve(page.getPath()).normalize();
+		if (! file.startsWith(dir) || file.equals(dir))
+			throw new IllegalArgumentException(ERR_INVALID_PATH +
+					": " + page.getPath());
+		Worker worker = workers.get();
+		if (worker == null) {
+			worker = new Worker(template.copy(), capacity);
+			workers.set(worker);
+		}
+		worker.page.reset();
+		worker.buffer.reset();
+		String key = null, print = null;
+		if (printsFile == null || ! (page instanceof RecordedPage))
+			page.write(worker.page, worker.buffer);
+		else {
+			((RecordedPage) page).record(worker.page);
+			RepRecording recording = worker.page.getRecording();
+			key = dir.relativize(file).toString();
+			print = String.format("%016x", Long.valueOf(
+					recording.fingerprint()));
+			if (print.equals(oldPrints.get(key)) &&
+					Files.exists(file)) {
+				newPrints.put(key, print);
+				skipped.increment();
+				return;
+			}
+			recording.replay(worker.page, worker.buffer);
+		}
+		ByteBuffer data = worker.buffer.toUtf8(worker.bytes);
+		worker.bytes = data;
+		Files.createDirectories(file.getParent());
+		FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		try {
+			while (data.hasRemaining())
+				channel.write(data);
+		}
+		finally {
+			channel.close();
+		}
+		pages.increment();
+		bytes.add(data.limit());
+		if (key != null)
+			newPrints.put(key, print);
+	}
+
+	//Replaces the file of fingerprints with the ones of this batch:
+	private void writePrints() throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		TreeMap<String, String> sorted =
+				new TreeMap<String, String>(newPrints);
+		for (Map.Entry<String, String> entry : sorted.entrySet())
+			lines.add(entry.getValue() + " " + entry.getKey());
+		Path tmp = printsFile.resolveSibling(
+				printsFile.getFileName() + ".tmp");
+		Files.write(tmp, lines, UTF8);
+		Files.move(tmp, printsFile,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
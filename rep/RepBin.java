@@ -0,0 +1,365 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * RepBin stores Rep templates in a precompiled binary format that can be
+ * loaded without parsing the template again.
+ *
+ * <p>The binary format starts with a header that contains the version of the
+ * format, the checksum and length of the source template, and the checksum
+ * of the rest of the data, that contains the hierarchy of blocks with their
+ * variables and their texts already decomposed and encoded in UTF-8.</p>
+ *
+ * <p>The templates of a directory can be precompiled with the command:</p>
+ *
+ * <code>java rep.RepBin SRCDIR OUTDIR</code>
+ *
+ * <p>It validates all the files ending with <code>.tpl.html</code> and
+ * reports all the errors found, and if there are no errors it writes
+ * the precompiled templates with the same names ended in <code>.bin</code>.
+ * When the source template is also given to load a precompiled template,
+ * its checksum is compared to detect precompiled files that are stale.</p>
+ */
+public class RepBin {
+
+	private static final int MAGIC = 0x52455042; //"REPB"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 24;
+
+	private static final String SOURCE_SUFFIX = ".tpl.html";
+	private static final String BINARY_SUFFIX = ".bin";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String
+	ERR_INVALID_FORMAT = "Invalid precompiled template", //01
+	ERR_INVALID_VERSION = "Unsupported precompiled template version", //02
+	ERR_INVALID_CHECKSUM = "Corrupted precompiled template", //03
+	ERR_STALE = "Precompiled template does not match the source"; //04
+
+	/**
+	 * Precompiles all the templates of the source directory given as the
+	 * first argument into the directory given as the second argument.
+	 * Exits with an error status if any template is not valid.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java rep.RepBin" +
+					" SRCDIR OUTDIR");
+			System.exit(2);
+		}
+		File srcDir = new File(args[0]);
+		File outDir = new File(args[1]);
+		ArrayList<String> names = new ArrayList<String>();
+		listTemplates(srcDir, "", names);
+		Collections.sort(names);
+		ArrayList<byte[]> bins = new ArrayList<byte[]>();
+		int errors = 0;
+		for (String name : names) {
+			try {
+				bins.add(compile(RepBlk.readAll(new FileReader(
+						new File(srcDir, name)))));
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println(name + ": " +
+						e.getMessage());
+				errors++;
+			}
+		}
+		if (errors > 0) {
+			System.err.println(errors + " of " + names.size() +
+					" templates not valid");
+			System.exit(1);
+		}
+		for (int i = 0; i < names.size(); i++) {
+			File file = new File(outDir,
+					names.get(i) + BINARY_SUFFIX);
+			file.getParentFile().mkdirs();
+			OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(bins.get(i));
+			}
+			finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Parses the given template and returns it precompiled.
+	 * Throws the same exceptions as the RepBlk constructor.
+	 */
+	public static byte[] compile(String tpl) {
+		RepBlk blk = new RepBlk(tpl);
+		ByteArrayOutputStream data = new ByteArrayOutputStream(
+				tpl.length() + 256);
+		try {
+			writeBlk(blk, new DataOutputStream(data));
+			byte[] payload = data.toByteArray();
+			int length = HEADER_LENGTH + payload.length;
+			ByteArrayOutputStream result =
+					new ByteArrayOutputStream(length);
+			DataOutputStream out = new DataOutputStream(result);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(checksum(tpl));
+			out.writeInt(tpl.length());
+			out.writeInt(payload.length);
+			out.writeInt(checksum(payload, 0, payload.length));
+			out.write(payload);
+			return result.toByteArray();
+		}
+		catch (IOException e) { //not possible writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Loads the initial block of a precompiled template from the buffer,
+	 * starting at its current position.
+	 */
+	public static RepBlk load(ByteBuffer buf) {
+		return load(buf, null);
+	}
+
+	/**
+	 * Loads the initial block of a precompiled template from the buffer,
+	 * starting at its current position, and checks that it was generated
+	 * from the given source template, if it is not null.
+	 */
+	public static RepBlk load(ByteBuffer buf, String tpl) {
+		try {
+			if (buf.getInt() != MAGIC)
+				throwBadArg(ERR_INVALID_FORMAT);
+			if (buf.getInt() != VERSION)
+				throwBadArg(ERR_INVALID_VERSION);
+			int tplChecksum = buf.getInt();
+			int tplLength = buf.getInt();
+			if (tpl != null && (tpl.length() != tplLength ||
+					checksum(tpl) != tplChecksum))
+				throwBadArg(ERR_STALE);
+			int length = buf.getInt();
+			int payloadChecksum = buf.getInt();
+			if (length < 0 || length > buf.remaining())
+				throwBadArg(ERR_INVALID_FORMAT);
+			ByteBuffer payload = buf.slice();
+			payload.limit(length);
+			if (checksum(payload) != payloadChecksum)
+				throwBadArg(ERR_INVALID_CHECKSUM);
+			RepBlk blk = readBlk(payload, new RepBlk.Output());
+			if (payload.hasRemaining() || blk.getBlkName() != null)
+				throwBadArg(ERR_INVALID_FORMAT);
+			blk.initTemplate();
+			buf.position(buf.position() + length);
+			return blk;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException(ERR_INVALID_FORMAT);
+		}
+	}
+
+	/**
+	 * Loads the initial block of the precompiled template in the file,
+	 * mapping it in memory instead of reading it.
+	 */
+	public static RepBlk load(File binFile) throws IOException {
+		return load(binFile, null);
+	}
+
+	/**
+	 * Loads the initial block of the precompiled template in the file,
+	 * and if the source file is not null, checks that the precompiled
+	 * template was generated from the current contents of that file.
+	 */
+	public static RepBlk load(File binFile, File srcFile)
+			throws IOException {
+		String tpl = (srcFile == null ? null :
+				RepBlk.readAll(new FileReader(srcFile)));
+		FileInputStream in = new FileInputStream(binFile);
+		try {
+			FileChannel channel = in.getChannel();
+			return load(channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size()), tpl);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	//Block format: name, variable names and places, texts with the slots
+	//of their variables, number of children and ranges, and the children.
+	private static void writeBlk(RepBlk blk, DataOutputStream out)
+			throws IOException {
+		writeString(blk.getBlkName(), out);
+		String[] places = blk.getPlaces();
+		out.writeInt(places.length);
+		int i = 0;
+		for (String name : blk.getVarNames()) {
+			writeString(name, out);
+			writeString(places[i++], out);
+		}
+		String[] texts = blk.getTexts();
+		int[] slots = blk.getSlots();
+		out.writeInt(texts.length);
+		for (i = 0; i < texts.length; i++) {
+			writeString(texts[i], out);
+			out.writeInt(slots[i]);
+		}
+		int[] ranges = blk.getRanges();
+		out.writeInt(ranges.length - 1);
+		for (i = 0; i < ranges.length; i++)
+			out.writeInt(ranges[i]);
+		for (i = 0; i < ranges.length - 1; i++)
+			writeBlk(blk.getBlk(i), out);
+	}
+
+	//Reads a block written by writeBlk, validating all the values:
+	private static RepBlk readBlk(ByteBuffer buf, RepBlk.Output output) {
+		String blkName = readString(buf);
+		int nVars = readCount(buf);
+		String[] varNames = new String[nVars];
+		String[] places = new String[nVars];
+		for (int i = 0; i < nVars; i++) {
+			varNames[i] = readString(buf);
+			places[i] = readString(buf);
+			if (varNames[i] == null || places[i] == null)
+				throwBadArg(ERR_INVALID_FORMAT);
+		}
+		int nTexts = readCount(buf);
+		String[] texts = new String[nTexts];
+		int[] slots = new int[nTexts];
+		for (int i = 0; i < nTexts; i++) {
+			texts[i] = readString(buf);
+			slots[i] = buf.getInt();
+			if (texts[i] == null || slots[i] < -1 ||
+					slots[i] >= nVars)
+				throwBadArg(ERR_INVALID_FORMAT);
+		}
+		int[] ranges = new int[readCount(buf) + 1];
+		for (int i = 0; i < ranges.length; i++) {
+			ranges[i] = buf.getInt();
+			if (ranges[i] < (i > 0 ? ranges[i - 1] : 0))
+				throwBadArg(ERR_INVALID_FORMAT);
+		}
+		if (ranges[ranges.length - 1] != nTexts)
+			throwBadArg(ERR_INVALID_FORMAT);
+		RepBlk[] blocks = new RepBlk[ranges.length - 1];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = readBlk(buf, output);
+			if (blocks[i].getBlkName() == null)
+				throwBadArg(ERR_INVALID_FORMAT);
+			for (int j = 0; j < i; j++)
+				if (blocks[j].getBlkName().equals(
+						blocks[i].getBlkName()))
+					throwBadArg(ERR_INVALID_FORMAT);
+		}
+		return new RepBlk(blkName, output, varNames, places,
+				texts, slots, ranges, blocks);
+	}
+
+	private static void writeString(String str, DataOutputStream out)
+			throws IOException {
+		if (str == null)
+			out.writeInt(-1);
+		else {
+			byte[] bytes = str.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length == -1)
+			return null;
+		if (length < 0 || length > buf.remaining())
+			throwBadArg(ERR_INVALID_FORMAT);
+		String str;
+		if (buf.hasArray()) {
+			str = new String(buf.array(), buf.arrayOffset() +
+					buf.position(), length, UTF8);
+			buf.position(buf.position() + length);
+		}
+		else {
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			str = new String(bytes, UTF8);
+		}
+		return str;
+	}
+
+	private static int readCount(ByteBuffer buf) {
+		int count = buf.getInt();
+		if (count < 0 || count > buf.remaining())
+			throwBadArg(ERR_INVALID_FORMAT);
+		return count;
+	}
+
+	private static int checksum(String tpl) {
+		byte[] bytes = tpl.getBytes(UTF8);
+		return checksum(bytes, 0, bytes.length);
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static int checksum(ByteBuffer buf) {
+		CRC32 crc = new CRC32();
+		crc.update(buf.duplicate());
+		return (int) crc.getValue();
+	}
+
+	//adds to the list the relative paths of the templates in the dir:
+	private static void listTemplates(File dir, String prefix,
+			ArrayList<String> names) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory())
+				listTemplates(file, prefix + file.getName() +
+						"/", names);
+			else if (file.getName().endsWith(SOURCE_SUFFIX))
+				names.add(prefix + file.getName());
+		}
+	}
+
+	private static void throwBadArg(String msg) {
+		throw new IllegalArgumentException(msg);
+	}
+
+}
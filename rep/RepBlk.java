@@ -20,12 +20,17 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -131,11 +136,46 @@ public class RepBlk {
 	              [OUT]
 	*/
 
+	/**
+	 * Option of the constructors to minify the texts of the template when
+	 * it is parsed: each run of whitespace outside the tags is replaced by
+	 * one line break if it contains any, or by one space otherwise, and the
+	 * HTML comments are removed, except the conditional comments. The tags
+	 * with their attributes and the contents of the elements pre, textarea,
+	 * script and style are not modified. The variables are found before
+	 * minifying the texts, and the whitespace of the texts separated by
+	 * variables or blocks is minified independently.
+	 */
+	public static final int OPT_MINIFY = 1;
+
+	/**
+	 * Option of the constructors to parse each block inside the template
+	 * only when it is used for the first time, by any copy of the initial
+	 * block, except to skip it. When the template is parsed, only the end
+	 * of each block inside the initial block is searched. The errors in
+	 * the contents of a block are found when it is parsed, throwing an
+	 * IllegalArgumentException from the method that uses the block.
+	 */
+	public static final int OPT_LAZY = 2;
+
+	/**
+	 * Option of the constructors to parse the long blocks inside the
+	 * initial block in other threads of the common ForkJoinPool, after
+	 * searching only their ends, while the initial block is parsed.
+	 * The template and the error messages are the same as without this
+	 * option: when there are errors, the first one in the template is
+	 * reported. It has no effect with OPT_LAZY.
+	 */
+	public static final int OPT_PARALLEL = 4;
+
 	private static final int
 		TAG_NONE = 0,
 		TAG_START = 1,
 		TAG_END = 2;
 
+	//chars of the blocks parsed in other threads with OPT_PARALLEL:
+	private static final int PARALLEL_MIN_LENGTH = 8192;
+
 	private static final String
 	ERR_EMPTY_BLK_ATTR = "Empty blk attribute in Rep tag", //01
 	ERR_EMPTY_VAR_ATTR = "Empty var attribute in Rep tag", //02
@@ -153,26 +193,39 @@ public class RepBlk {
 	ERR_INVALID_METHOD = "This method cannot be used on this block", //14
 	ERR_INVALID_STATE = "Operation not allowed now on this block", //15
 	ERR_CHILD_STATE = "Next not allowed because the state of child", //16
-	ERR_NOT_FINALIZED = "The page has not been written completely"; //17
+	ERR_NOT_FINALIZED = "The page has not been written completely", //17
+	ERR_INVALID_OPTIONS = "Invalid options", //18
+	ERR_INVALID_LEVEL = "Invalid compression level"; //19
 
 	private final String blkName;
-	private final Writer[] writerBox;
-	private final List<String> blkNames;
-	private final Set<String> varNamesSet;
+	private final Output output; //shared by all blocks of the hierarchy
+	private String path; //names of the block and its parents, like /a/b
+	private int depth; //number of parents of the block
 	private int state = STATE_OUT; //STATE or index of current child block
-	private ArrayList<RepBlk> blocks = new ArrayList<RepBlk>();
-	private HashMap<String, RepBlk> blksMap = new HashMap<String, RepBlk>();
-	private HashMap<String, String> varsMap = new HashMap<String, String>();
-	private ArrayList<Integer> ranges = new ArrayList<Integer>();
-	private ArrayList<String> texts = new ArrayList<String>();
-	private ArrayList<String> varNames = new ArrayList<String>();
+	private final Lazy lazy; //source of the block with OPT_LAZY, or null
+	//the next fields are set when the block is parsed, which happens
+	//after the block is created only when the template uses OPT_LAZY:
+	private List<String> blkNames;
+	private Set<String> varNamesSet;
+	private RepBlk[] blocks; //children sorted as in the template
+	private RepNames blkTable; //position of each child block by name
+	private RepNames varTable; //slot of each variable by name
+	private String[] places; //places of the variables by slot
+	private String[] values; //values of the variables by slot
+	private int[] ranges; //end of the texts before each child block
+	private String[] texts; //texts followed by variables (or none)
+	private int[] slots; //slot of the variable after each text or -1
+	private RepCache cache; //texts of the repetitions of the block, or null
+	private String cacheKey; //key of the repetition being captured
+	private int captureStart = -1; //position in output.capture, or -1
+	private RepChunk[] chunks; //texts precompressed, or null
 
 	/**
 	 * Reads the template to create the initial block and closes the Reader.
 	 * The initial block contains the rest of the blocks of the hierarchy.
 	 */
 	public RepBlk(Reader reader) throws IOException {
-		this(null, new String[] { readAll(reader) }, new Writer[1]);
+		this(readAll(reader), 0);
 	}
 
 	/**
@@ -180,7 +233,33 @@ public class RepBlk {
 	 * The initial block contains the rest of the blocks of the hierarchy.
 	 */
 	public RepBlk(String tpl) {
-		this(null, new String[] {tpl}, new Writer[1]);
+		this(tpl, 0);
+	}
+
+	/**
+	 * Reads the template like RepBlk(Reader) with the given options,
+	 * which can be OPT_MINIFY, OPT_LAZY, OPT_PARALLEL, any combination
+	 * of them or 0.
+	 */
+	public RepBlk(Reader reader, int options) throws IOException {
+		this(readAll(reader), options);
+	}
+
+	/**
+	 * Reads the template like RepBlk(String) with the given options,
+	 * which can be OPT_MINIFY, OPT_LAZY, OPT_PARALLEL, any combination
+	 * of them or 0.
+	 */
+	public RepBlk(String tpl, int options) {
+		this(tpl, options, null);
+	}
+
+	//package constructor that also keeps the texts in the interner, if
+	//given, dividing the long texts in parts that can be shared:
+	RepBlk(String tpl, int options, RepInterner interner) {
+		this(null, new String[] {tpl}, new Output(),
+				checkOptions(options), interner, options);
+		initTemplate();
 	}
 
 	/**
@@ -196,10 +275,135 @@ public class RepBlk {
 			throwBadState(ERR_INVALID_METHOD);
 		if (state > -1)
 			resetState();
-		writerBox[0] = writer;
+		if (output.running)
+			aborted(ERR_NOT_FINALIZED, null);
+		output.writer = writer;
+		output.running = true;
+		output.dryRun = false;
+		output.recorder = null;
+		if (output.captures > 0) {
+			output.captures = 0;
+			output.capture.setLength(0);
+		}
+		RepMonitor monitor = output.monitor;
+		output.flushes = 0;
+		if (monitor != null) {
+			output.chars = 0;
+			output.monitorData = null;
+			output.startTime = System.nanoTime();
+			monitor.started(this);
+		}
 		writeState(0);
 	}
 
+	/**
+	 * Begins a page that is not written, but only used to compute a digest
+	 * of its contents, returned by getDigest after the page is completed.
+	 * The page must be processed with the same calls used to write it, and
+	 * the digest only depends on the template and on the sequence of calls
+	 * and values given, so it can be used as the ETag of the page to find
+	 * out if a client has it already without writing or encoding it.
+	 * This operation is only allowed on the initial block, and it resets
+	 * the state of all blocks if a previous process was not finalized.
+	 */
+	public void startDigest() {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		if (state > -1)
+			resetState();
+		if (output.running)
+			aborted(ERR_NOT_FINALIZED, null);
+		output.writer = null;
+		output.dryRun = true;
+		output.recorder = null;
+		output.digest = getTemplateDigest();
+		output.chars = 0;
+		digestState(0);
+	}
+
+	/**
+	 * Begins a page that is not written, but recorded to write it later
+	 * with the RepRecording returned by getRecording after the page is
+	 * completed. The operations are checked as if the page was written,
+	 * but the texts of the blocks with a RepCache are always recorded.
+	 * This operation is only allowed on the initial block, and it resets
+	 * the state of all blocks if a previous process was not finalized.
+	 */
+	public void startRecording() {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		if (state > -1)
+			resetState();
+		if (output.running)
+			aborted(ERR_NOT_FINALIZED, null);
+		output.writer = null;
+		output.dryRun = true;
+		output.recorder = new RepRecording.Recorder(
+				getTemplateDigest());
+		output.chars = 0;
+		digestState(0);
+	}
+
+	/**
+	 * Returns the recording of the page processed after startRecording.
+	 * This operation is only allowed on the initial block, after use it.
+	 */
+	public RepRecording getRecording() {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		if (output.recorder == null || state != STATE_USED)
+			throwBadState(ERR_NOT_FINALIZED);
+		return output.recorder.finish();
+	}
+
+	/**
+	 * Returns the digest of the page processed after startDigest, as 16
+	 * hexadecimal digits. Equal pages of the same template have always the
+	 * same digest, and different pages will have different digests except
+	 * in very rare cases.
+	 * This operation is only allowed on the initial block, after use it.
+	 */
+	public String getDigest() {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		if (! output.dryRun || output.recorder != null ||
+				state != STATE_USED)
+			throwBadState(ERR_NOT_FINALIZED);
+		return String.format("%016x", Long.valueOf(output.digest));
+	}
+
+	/**
+	 * Returns the exact length in chars of the page processed after
+	 * startDigest or startRecording, to create a buffer of that size to
+	 * write the page.
+	 * This operation is only allowed on the initial block, after use it.
+	 */
+	public long getLength() {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		if (! output.dryRun || state != STATE_USED)
+			throwBadState(ERR_NOT_FINALIZED);
+		return output.chars;
+	}
+
+	/**
+	 * Returns the length of the texts of this block and its children,
+	 * counting each block once and each variable with the length of its
+	 * place in the template, as an estimation of the length of the pages.
+	 */
+	public int getTextLength() {
+		parse();
+		int length = 0;
+		for (int i = 0; i < texts.length; i++) {
+			length += texts[i].length();
+			if (slots[i] > -1)
+				length += places[slots[i]].length();
+		}
+		for (RepBlk block : blocks)
+			length += block.getTextLength();
+		return length;
+	}
+
 	/**
 	 * Begins the writing of the block, not applicable to the initial block.
 	 * If this block has no children it writes all the text of the block,
@@ -210,7 +414,64 @@ public class RepBlk {
 			throwBadState(ERR_INVALID_METHOD);
 		if (state != STATE_READY && state != STATE_USED)
 			throwBadState(ERR_INVALID_STATE);
+		parse();
+		writeState(0);
+	}
+
+	/**
+	 * Begins the writing of the block like start, but using the RepCache
+	 * of the block, if any, to write the entire repetition of the block.
+	 * If the cache has a text for the given key (which may be null) and
+	 * the current values of the variables, it writes that text and returns
+	 * true, and the block must not be processed until its parent calls
+	 * next or the block is started again. Otherwise it returns false and
+	 * the block must be processed as usual, and when its last text is
+	 * written, all the text written by the block and its children is kept
+	 * in the cache. The key must identify any other data used to write
+	 * the children of the block, like their variables or repetitions.
+	 */
+	public boolean startCached(String key) throws IOException {
+		if (blkName == null)
+			throwBadState(ERR_INVALID_METHOD);
+		if (state != STATE_READY && state != STATE_USED)
+			throwBadState(ERR_INVALID_STATE);
+		parse();
+		if (cache == null || output.dryRun) {
+			writeState(0);
+			return false;
+		}
+		String fullKey = getCacheKey(key);
+		String text = cache.get(fullKey);
+		if (text != null) {
+			writeCached(text);
+			return true;
+		}
+		if (output.capture == null)
+			output.capture = new StringBuilder();
+		cacheKey = fullKey;
+		captureStart = output.capture.length();
+		output.captures++;
 		writeState(0);
+		return false;
+	}
+
+	/**
+	 * Sets the RepCache used by startCached on this block, or null to
+	 * write the block always. The copies of the initial block are created
+	 * with the same RepCache in their blocks.
+	 * This operation is not allowed on the initial block.
+	 */
+	public void setCache(RepCache cache) {
+		if (blkName == null)
+			throwBadState(ERR_INVALID_METHOD);
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the RepCache of this block, or null.
+	 */
+	public RepCache getCache() {
+		return cache;
 	}
 
 	/**
@@ -234,7 +495,7 @@ public class RepBlk {
 	public void next() throws IOException {
 		if (state < 0)
 			throwBadState(ERR_INVALID_STATE);
-		RepBlk blk = blocks.get(state);
+		RepBlk blk = blocks[state];
 		if (blk.state != STATE_USED && blk.state != STATE_CLOSED)
 			throwBadState(ERR_CHILD_STATE);
 		blk.state = STATE_OUT;
@@ -249,8 +510,12 @@ public class RepBlk {
 	public void end() throws IOException {
 		if (blkName != null)
 			throwBadState(ERR_INVALID_METHOD);
-		if (state != STATE_USED)
+		if (state != STATE_USED) {
+			//abandoned, unlike after the other errors, which the
+			//caller can catch to continue the page:
+			aborted(ERR_NOT_FINALIZED, null);
 			throwBadState(ERR_NOT_FINALIZED);
+		}
 	}
 
 	/**
@@ -259,7 +524,19 @@ public class RepBlk {
 	 * The blocks are requested by name to make them appear in the program.
 	 */
 	public RepBlk getBlk(String blkName) {
-		return blksMap.get(blkName);
+		parse();
+		int i = blkTable.indexOf(blkName);
+		return (i < 0 ? null : blocks[i]);
+	}
+
+	/**
+	 * Returns the block at the given position inside this block, using the
+	 * same order of getBlkNames, which must be a valid index for that list.
+	 * Used by programs that resolve the names of the blocks only once.
+	 */
+	public RepBlk getBlk(int blkIndex) {
+		parse();
+		return blocks[blkIndex];
 	}
 
 	/**
@@ -271,8 +548,24 @@ public class RepBlk {
 	public RepBlk setVar(String varName, String value) {
 		if (state > -1)
 			throwBadState(ERR_INVALID_STATE);
-		if (varsMap.containsKey(varName))
-			varsMap.put(varName, value);
+		parse();
+		int slot = varTable.indexOf(varName);
+		if (slot > -1)
+			values[slot] = value;
+		return this;
+	}
+
+	/**
+	 * Sets the value of the variable at the given position in this block,
+	 * using the same order of getVarNames, which must be a valid index.
+	 * Not allowed if the block has written already a part of its contents.
+	 * Returns this block, to chain more calls to set or start the block.
+	 */
+	public RepBlk setVar(int varIndex, String value) {
+		if (state > -1)
+			throwBadState(ERR_INVALID_STATE);
+		parse();
+		values[varIndex] = value;
 		return this;
 	}
 
@@ -281,14 +574,16 @@ public class RepBlk {
 	 * Returns always the same unmodifiable list, sorted as in the template.
 	 */
 	public List<String> getBlkNames() {
+		parse();
 		return blkNames;
 	}
 
 	/**
 	 * Returns a collection with the names of the variables of this block.
-	 * Returns always the same unmodifiable set of strings.
+	 * Returns always the same unmodifiable set, sorted as in the template.
 	 */
 	public Set<String> getVarNames() {
+		parse();
 		return varNamesSet;
 	}
 
@@ -297,76 +592,489 @@ public class RepBlk {
 	 * Used to flush or close the Writer passed to the initial block.
 	 */
 	public Writer getWriter() {
-		return writerBox[0];
+		return output.writer;
+	}
+
+	/**
+	 * Sets the RepMonitor that will receive the events of the writing of
+	 * the pages using this initial block, or null to remove it.
+	 * The copies of this block are created with the same RepMonitor.
+	 * This operation is only allowed on the initial block.
+	 */
+	public void setMonitor(RepMonitor monitor) {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		output.monitor = monitor;
+	}
+
+	/**
+	 * Makes the blocks with the given depth or less (0 for the initial
+	 * block, 1 for its children...) flush the Writer after writing each
+	 * one of their texts, to send the page progressively, for example
+	 * after the text before the first block and after every next called
+	 * on the initial block when the depth is 0. The default value is -1,
+	 * which flushes the Writer only when the page is completed.
+	 * The copies of this block are created with the same depth.
+	 * This operation is only allowed on the initial block.
+	 */
+	public void setFlushDepth(int depth) {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		output.flushDepth = depth;
+	}
+
+	/**
+	 * Compresses the texts of the template with at least the given length
+	 * in chars (without the variables), to write them already compressed
+	 * when the Writer is a RepDeflateWriter for the gzip format.
+	 * The template is modified, so this must be called before using it
+	 * or copying it, and the copies will use the same compressed texts.
+	 * This operation is only allowed on the initial block.
+	 */
+	public void precompress(int minLength, int level) {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		if (level < -1 || level > 9)
+			throwBadArg(ERR_INVALID_LEVEL);
+		precompressTexts(minLength, level);
+	}
+
+	/**
+	 * Returns the RepMonitor of the hierarchy of blocks, or null.
+	 */
+	public RepMonitor getMonitor() {
+		return output.monitor;
+	}
+
+	/**
+	 * Returns a new initial block for the same template, not started and
+	 * with the initial values in its variables. The parsed template is
+	 * never modified, so it is shared with the new hierarchy of blocks,
+	 * which can be used at the same time in a different thread.
+	 * This operation is only allowed on the initial block.
+	 */
+	public RepBlk copy() {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		Output out = new Output();
+		out.monitor = output.monitor;
+		out.flushDepth = output.flushDepth;
+		out.tplDigest = output.tplDigest;
+		return copy(out);
 	}
 
 	//private constructor to create recursively all blocks:
-	private RepBlk(String blkName, String[] tplBox, Writer[] writerBox) {
+	private RepBlk(String blkName, String[] tplBox, Output output,
+			RepMinifier minifier, RepInterner interner,
+			int options) {
 		this.blkName = blkName;
-		this.writerBox = writerBox;
+		this.output = output;
+		this.lazy = null;
+		boolean parallel = ((options & (OPT_LAZY | OPT_PARALLEL))
+				== OPT_PARALLEL);
 		int[] tagType = new int[1];
 		String prevText;
 		HashMap<String,String> attribs = new HashMap<String,String>();
-		addRange(ranges);
-		while ((prevText = findRepTag(tplBox,
-				tagType, attribs)) != null) {
-			incLastRange(parseVariables(prevText, varsMap,
-					texts, varNames), ranges);
-			if (tagType[0] == TAG_START) {
-				String name;
-				if ((name = attribs.get("blk")) != null) {
-					if (name.length() == 0)
-						throwBadArg(ERR_EMPTY_BLK_ATTR);
-					if (attribs.get("var") != null)
-						throwBadArg(ERR_MULTIPLE_ATTR);
-					if (blksMap.containsKey(name))
-						throwBadArg(ERR_REPEATED_BLK +
+		ArrayList<RepBlk> blkList = new ArrayList<RepBlk>();
+		LinkedHashMap<String,String> varsMap =
+				new LinkedHashMap<String,String>();
+		ArrayList<Integer> rangeList = new ArrayList<Integer>();
+		ArrayList<String> textList = new ArrayList<String>();
+		ArrayList<String> varNames = new ArrayList<String>();
+		HashSet<String> blkSet = new HashSet<String>();
+		addRange(rangeList);
+		try {
+			while ((prevText = findRepTag(tplBox,
+					tagType, attribs)) != null) {
+				incLastRange(parseVariables(prevText,
+						varsMap, textList, varNames,
+						minifier, interner),
+						rangeList);
+				if (tagType[0] == TAG_START) {
+					String name = attribs.get("blk");
+					if (name != null) {
+						if (name.length() == 0)
+							throwBadArg(
+							ERR_EMPTY_BLK_ATTR);
+						if (attribs.get("var") != null)
+							throwBadArg(
+							ERR_MULTIPLE_ATTR);
+						if (! blkSet.add(name))
+							throwBadArg(
+							ERR_REPEATED_BLK +
 							": " + name);
-					RepBlk blk = new RepBlk(name,
-							tplBox, writerBox);
-					blocks.add(blk);
-					blksMap.put(name, blk);
-					addRange(ranges);
-				}
-				else if ((name = attribs.get("var")) != null) {
-					name = attribs.get("var");
-					if (name.length() == 0)
-						throwBadArg(ERR_EMPTY_VAR_ATTR);
-					if (varsMap.containsKey(name))
-						throwBadArg(ERR_REPEATED_VAR +
+						//the block can be repeated
+						//or skipped when written:
+						if (minifier != null)
+							minifier.afterValue();
+						blkList.add(newChild(name,
+							tplBox, minifier,
+							interner, options));
+						if (minifier != null)
+							minifier.afterValue();
+						addRange(rangeList);
+					}
+					else if ((name = attribs.get("var"))
+							!= null) {
+						if (name.length() == 0)
+							throwBadArg(
+							ERR_EMPTY_VAR_ATTR);
+						if (varsMap.containsKey(name))
+							throwBadArg(
+							ERR_REPEATED_VAR +
 							": " + name);
-					String place = attribs.get("place");
-					if (place == null || place.length()==0)
-						throwBadArg(ERR_NO_PLACE_ATTR);
-					varsMap.put(name, place);
+						String place =
+							attribs.get("place");
+						if (place == null ||
+							place.length() == 0)
+							throwBadArg(
+							ERR_NO_PLACE_ATTR);
+						varsMap.put(name, place);
+					}
+					else
+						throwBadArg(ERR_MISSING_ATTR);
+				}
+				else if (tagType[0] == TAG_END) {
+					if (blkName == null)
+						throwBadArg(
+						ERR_NOT_OPENED_BLK);
+					break;
 				}
-				else
-					throwBadArg(ERR_MISSING_ATTR);
 			}
-			else if (tagType[0] == TAG_END) {
-				if (blkName == null)
-					throwBadArg(ERR_NOT_OPENED_BLK);
-				break;
+			if (blkName == null) {
+				incLastRange(parseVariables(tplBox[0],
+						varsMap, textList, varNames,
+						minifier, interner),
+						rangeList);
+				tplBox[0] = null;
 			}
+			else if (tagType[0] != TAG_END)
+				throwBadArg(ERR_NOT_CLOSED_BLK + ": " +
+						blkName);
+			HashSet<String> notFound = new
+					HashSet<String>(varsMap.keySet());
+			notFound.removeAll(varNames);
+			if (notFound.size() > 0)
+				throwBadArg(ERR_PLACE_NOT_FOUND + ": " +
+					joinStrings(sortedList(notFound),
+					", "));
 		}
-		if (blkName == null) {
-			incLastRange(parseVariables(tplBox[0], varsMap,
-					texts, varNames), ranges);
-			tplBox[0] = null;
-		}
-		else if (tagType[0] != TAG_END)
-			throwBadArg(ERR_NOT_CLOSED_BLK + ": " + blkName);
-		HashSet<String> notFound = new
-				HashSet<String>(varsMap.keySet());
-		notFound.removeAll(varNames);
-		if (notFound.size() > 0)
-			throwBadArg(ERR_PLACE_NOT_FOUND + ": " +
-				joinStrings(sortedList(notFound), ", "));
-		ArrayList<String> list = new ArrayList<String>(blocks.size());
+		catch (IllegalArgumentException e) {
+			if (parallel) //errors of the blocks found before
+				joinBlocks(blkList);
+			throw e;
+		}
+		if (parallel)
+			joinBlocks(blkList);
+		blocks = blkList.toArray(new RepBlk[blkList.size()]);
+		ArrayList<String> list = new ArrayList<String>(blocks.length);
 		for (RepBlk block : blocks)
 			list.add(block.blkName);
 		blkNames = Collections.unmodifiableList(list);
+		blkTable = new RepNames(list);
+		//variables resolved to slots to avoid lookups when writing:
+		places = varsMap.values().toArray(new String[varsMap.size()]);
+		values = places.clone();
 		varNamesSet = Collections.unmodifiableSet(varsMap.keySet());
+		varTable = new RepNames(new ArrayList<String>(varNamesSet));
+		texts = textList.toArray(new String[textList.size()]);
+		slots = new int[texts.length];
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = varTable.indexOf(varNames.get(i));
+		ranges = new int[rangeList.size()];
+		for (int i = 0; i < ranges.length; i++)
+			ranges[i] = rangeList.get(i).intValue();
+	}
+
+	//package constructor to create a block from its precompiled parts,
+	//that must be already validated and are not copied:
+	RepBlk(String blkName, Output output, String[] varNames,
+			String[] places, String[] texts, int[] slots,
+			int[] ranges, RepBlk[] blocks) {
+		this.blkName = blkName;
+		this.output = output;
+		this.lazy = null;
+		this.places = places;
+		this.values = places.clone();
+		this.texts = texts;
+		this.slots = slots;
+		this.ranges = ranges;
+		this.blocks = blocks;
+		ArrayList<String> list = new ArrayList<String>(blocks.length);
+		for (RepBlk block : blocks)
+			list.add(block.blkName);
+		blkNames = Collections.unmodifiableList(list);
+		blkTable = new RepNames(list);
+		varNamesSet = Collections.unmodifiableSet(new
+				LinkedHashSet<String>(Arrays.asList(varNames)));
+		varTable = new RepNames(Arrays.asList(varNames));
+	}
+
+	//constructor of a block of a template with OPT_LAZY, not parsed yet,
+	//or of a copy whose parts are shared later:
+	private RepBlk(String blkName, Output output, Lazy lazy) {
+		this.blkName = blkName;
+		this.output = output;
+		this.lazy = lazy;
+	}
+
+	//Parses the block if it has not been parsed yet, with the parts of
+	//the block that was parsed for all the copies of the template:
+	private void parse() {
+		if (texts != null)
+			return;
+		share(lazy.parse());
+		for (RepBlk block : blocks) {
+			block.depth = depth + 1;
+			block.initPath(path);
+		}
+	}
+
+	//Sets the parts of the given parsed block in this block, which are
+	//shared, except its children, which are copied:
+	private void share(RepBlk parsed) {
+		blocks = new RepBlk[parsed.blocks.length];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = parsed.blocks[i].copy(output);
+		blkNames = parsed.blkNames;
+		blkTable = parsed.blkTable;
+		varNamesSet = parsed.varNamesSet;
+		varTable = parsed.varTable;
+		places = parsed.places;
+		values = places.clone();
+		ranges = parsed.ranges;
+		slots = parsed.slots;
+		chunks = parsed.chunks;
+		texts = parsed.texts;
+	}
+
+	//Creates the child block whose start tag has been removed from the
+	//template, parsing it now or later depending on the options:
+	private RepBlk newChild(String name, String[] tplBox,
+			RepMinifier minifier, RepInterner interner,
+			int options) {
+		if ((options & OPT_LAZY) != 0)
+			return new RepBlk(name, output, new Lazy(name, tplBox,
+					minifier, interner, options));
+		if ((options & OPT_PARALLEL) != 0)
+			return forkBlk(name, tplBox, minifier, interner);
+		return new RepBlk(name, tplBox, output, minifier, interner,
+				options);
+	}
+
+	//Finds the end of a block with OPT_PARALLEL and starts parsing it in
+	//other thread if it is long. If its end is not found, it is parsed
+	//here to throw the same error found without OPT_PARALLEL.
+	private RepBlk forkBlk(String name, String[] tplBox,
+			RepMinifier minifier, RepInterner interner) {
+		Lazy source;
+		try {
+			source = new Lazy(name, tplBox, minifier, interner, 0);
+		}
+		catch (IllegalArgumentException e) {
+			return new RepBlk(name, tplBox, output, minifier,
+					interner, 0);
+		}
+		if (source.length() >= PARALLEL_MIN_LENGTH)
+			source.fork();
+		return new RepBlk(name, output, source);
+	}
+
+	//Replaces the blocks found by forkBlk with the parsed blocks, in the
+	//order of the template, so the first error is thrown (parsing again
+	//here the block that failed in other thread):
+	private void joinBlocks(ArrayList<RepBlk> blkList) {
+		for (int i = 0; i < blkList.size(); i++) {
+			RepBlk blk = blkList.get(i);
+			if (blk.lazy == null)
+				continue;
+			blkList.set(i, blk.lazy.join().copy(output));
+		}
+	}
+
+	//copies recursively the block sharing all its final parts, and the
+	//caches of its children if they have been parsed already (if not,
+	//they are parsed again from the shared parts, and have no caches):
+	private RepBlk copy(Output output) {
+		RepBlk blk = new RepBlk(blkName, output, lazy);
+		blk.path = path;
+		blk.depth = depth;
+		blk.cache = cache;
+		if (texts != null)
+			blk.share(this);
+		return blk;
+	}
+
+	//compresses recursively the texts of the block and its children:
+	private void precompressTexts(int minLength, int level) {
+		if (texts == null) { //compressed when parsed
+			lazy.precompress(minLength, level);
+			return;
+		}
+		RepChunk[] result = null;
+		for (int i = 0; i < texts.length; i++) {
+			if (texts[i].length() >= minLength &&
+					texts[i].length() > 0) {
+				if (result == null)
+					result = new RepChunk[texts.length];
+				result[i] = new RepChunk(texts[i], level);
+			}
+		}
+		chunks = result;
+		for (RepBlk block : blocks)
+			block.precompressTexts(minLength, level);
+	}
+
+	//Initializes the initial block after creating the hierarchy, setting
+	//the paths of the blocks and the digest of the template, which is
+	//computed only once and given to all the copies:
+	void initTemplate() {
+		initPath("");
+		output.tplDigest = digestTemplate(FNV_OFFSET);
+	}
+
+	//sets recursively the paths of the block and its children:
+	private void initPath(String parentPath) {
+		path = (blkName == null ? "/" : parentPath + "/" + blkName
+				.replace("%", "%25").replace("/", "%2F"));
+		if (texts == null) //not parsed
+			return;
+		for (RepBlk block : blocks) {
+			block.depth = depth + 1;
+			block.initPath(blkName == null ? "" : path);
+		}
+	}
+
+	//Returns the names of the block and its parents, like /list/item,
+	//or / for the initial block, with the characters / and % of the names
+	//replaced by %2F and %25.
+	String getPath() {
+		return path;
+	}
+
+	//Returns the names of the blocks of a path returned by getPath,
+	//without the initial block:
+	static String[] splitPath(String path) {
+		if (path.equals("/"))
+			return new String[0];
+		String[] names = path.substring(1).split("/", -1);
+		for (int i = 0; i < names.length; i++)
+			names[i] = names[i].replace("%2F", "/")
+					.replace("%25", "%");
+		return names;
+	}
+
+	//Returns the number of parents of the block, 0 for the initial block.
+	int getDepth() {
+		return depth;
+	}
+
+	//Returns the times that the Writer was flushed in the current page.
+	int getFlushCount() {
+		return output.flushes;
+	}
+
+	//Returns the length of the current page, only when monitored.
+	long getCharCount() {
+		return output.chars;
+	}
+
+	//package methods to keep an object of the monitor during a page,
+	//which is set to null when the page is started:
+
+	Object getMonitorData() {
+		return output.monitorData;
+	}
+
+	void setMonitorData(Object data) {
+		output.monitorData = data;
+	}
+
+	//Returns the initial block to the state of a new copy, aborting the
+	//page if it was not finalized, to use it again for other page:
+	void reset() {
+		if (blkName != null)
+			throwBadState(ERR_INVALID_METHOD);
+		resetState();
+		aborted(ERR_NOT_FINALIZED, null);
+		resetValues();
+		output.writer = null;
+		output.monitorData = null;
+		output.dryRun = false;
+		output.recorder = null;
+		if (output.captures > 0) {
+			output.captures = 0;
+			output.capture.setLength(0);
+		}
+	}
+
+	private void resetValues() {
+		if (texts == null) //not parsed
+			return;
+		System.arraycopy(places, 0, values, 0, places.length);
+		for (RepBlk block : blocks)
+			block.resetValues();
+	}
+
+	//package method to set the variables of this block to the texts of
+	//their places, used by RepData for the fields missing in a record:
+	void resetVars() {
+		if (state > -1)
+			throwBadState(ERR_INVALID_STATE);
+		parse();
+		System.arraycopy(places, 0, values, 0, places.length);
+	}
+
+	//package methods to keep the entry of the RepPool that lent the
+	//initial block, or null:
+
+	Object getLease() {
+		return output.lease;
+	}
+
+	void setLease(Object lease) {
+		output.lease = lease;
+	}
+
+	//package methods giving the parts of the block to precompile it,
+	//the returned arrays are shared and must not be modified:
+
+	String getBlkName() {
+		return blkName;
+	}
+
+	String[] getPlaces() {
+		parse();
+		return places;
+	}
+
+	String[] getTexts() {
+		parse();
+		return texts;
+	}
+
+	int[] getSlots() {
+		parse();
+		return slots;
+	}
+
+	int[] getRanges() {
+		parse();
+		return ranges;
+	}
+
+	RepChunk[] getChunks() {
+		parse();
+		return chunks;
+	}
+
+	//Returns the digest of the template, computed when it was created:
+	long getTemplateDigest() {
+		return output.tplDigest;
+	}
+
+	int getFlushDepth() {
+		return output.flushDepth;
 	}
 
 	private static String joinStrings(Collection<String> coll, String sep) {
@@ -403,32 +1111,214 @@ public class RepBlk {
 	//Resets recursivelly the state of a block and its children.
 	private void resetState() {
 		if (state > -1)
-			blocks.get(state).resetState();
+			blocks[state].resetState();
 		state = STATE_OUT;
+		captureStart = -1;
+	}
+
+	//Returns the key of the current repetition of the block in the cache,
+	//made of the digest of the template (so the templates sharing the
+	//cache, or reloaded, never use the texts of others), its path, the
+	//given key and the values of its variables, each one preceded by its
+	//length to avoid ambiguities:
+	private String getCacheKey(String key) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Long.toHexString(output.tplDigest)).append(path);
+		if (key == null)
+			sb.append('-');
+		else
+			sb.append(key.length()).append(':').append(key);
+		for (String value : values)
+			sb.append(value.length()).append(':').append(value);
+		return sb.toString();
+	}
+
+	//Writes the text of a repetition of the block found in the cache,
+	//leaving the block as it had been written and its children skipped:
+	private void writeCached(String text) throws IOException {
+		RepMonitor monitor = output.monitor;
+		long time = (monitor != null ? System.nanoTime() : 0);
+		try {
+			output.writer.write(text);
+		}
+		catch (IOException e) {
+			aborted(e.toString(), e);
+			throw e;
+		}
+		if (output.captures > 0)
+			output.capture.append(text);
+		state = STATE_USED;
+		if (monitor != null) {
+			output.chars += text.length();
+			long nanos = System.nanoTime() - time;
+			monitor.written(this, 0, text.length(), nanos);
+			if (blocks.length > 0)
+				monitor.written(this, blocks.length, 0, 0);
+		}
+	}
+
+	//Keeps in the cache the text written by the repetition of the block:
+	private void endCapture() {
+		StringBuilder capture = output.capture;
+		cache.put(cacheKey, capture.substring(captureStart));
+		cacheKey = null;
+		captureStart = -1;
+		if (--output.captures == 0)
+			capture.setLength(0);
 	}
 
 	//Writes the selected text of the block with its variables replaced.
 	//Then, sets the state of the block and of its next child, if any.
-	//When the last text of the initial block is written, it calls flush.
+	//When the last text of the initial block is written, it calls flush,
+	//and also after the texts of the blocks up to output.flushDepth.
 	private void writeState(int pos) throws IOException {
-		Writer writer = writerBox[0];
-		int limit = ranges.get(pos);
-		int init = pos > 0 ? ranges.get(pos - 1) : 0;
-		for (int i = init; i < limit; i++) {
-			writer.write(texts.get(i));
-			String varName = varNames.get(i);
-			if (varName != null)
-				writer.write(varsMap.get(varName));
+		if (output.dryRun) {
+			digestState(pos);
+			return;
 		}
-		if (pos < blocks.size()) {
-			state = pos;
-			blocks.get(state).state = STATE_READY;
+		Writer writer = output.writer;
+		RepMonitor monitor = output.monitor;
+		long time = (monitor != null ? System.nanoTime() : 0);
+		int limit = ranges[pos];
+		int init = pos > 0 ? ranges[pos - 1] : 0;
+		StringBuilder capture = (output.captures > 0 ?
+				output.capture : null);
+		RepChunk[] chunks = (writer instanceof RepDeflateWriter ?
+				this.chunks : null);
+		try {
+			for (int i = init; i < limit; i++) {
+				if (chunks != null && chunks[i] != null)
+					((RepDeflateWriter) writer)
+						.writeChunk(chunks[i]);
+				else
+					writer.write(texts[i]);
+				int slot = slots[i];
+				if (slot > -1)
+					writer.write(values[slot]);
+				if (capture != null) {
+					capture.append(texts[i]);
+					if (slot > -1)
+						capture.append(values[slot]);
+				}
+			}
+			if (pos < blocks.length) {
+				state = pos;
+				blocks[state].state = STATE_READY;
+			}
+			else {
+				state = STATE_USED;
+				if (captureStart > -1)
+					endCapture();
+			}
+			if (depth <= output.flushDepth || blkName == null &&
+					state == STATE_USED) {
+				writer.flush();
+				output.flushes++;
+			}
 		}
+		catch (IOException e) {
+			aborted(e.toString(), e);
+			throw e;
+		}
+		if (monitor != null) {
+			long chars = countChars(init, limit);
+			output.chars += chars;
+			long now = System.nanoTime();
+			monitor.written(this, pos, chars, now - time);
+			if (state == STATE_USED && blkName == null &&
+					output.running)
+				monitor.finished(this, output.chars,
+						now - output.startTime);
+		}
+		if (state == STATE_USED && blkName == null)
+			output.running = false;
+	}
+
+	private static final long
+		FNV_OFFSET = 0xcbf29ce484222325L,
+		FNV_PRIME = 0x100000001b3L;
+
+	//Adds to the digest of the page the selected text of the block (its
+	//position and the values of its variables, since the texts are in
+	//the digest of the template), or records it if the page is being
+	//recorded, and sets the state like writeState:
+	private void digestState(int pos) {
+		int init = pos > 0 ? ranges[pos - 1] : 0;
+		int limit = ranges[pos];
+		if (output.recorder != null)
+			output.recorder.record(this, pos, values);
 		else {
+			long h = digest(output.digest, depth);
+			h = digest(h, pos);
+			for (int i = init; i < limit; i++) {
+				int slot = slots[i];
+				if (slot > -1)
+					h = digest(h, values[slot]);
+			}
+			output.digest = h;
+		}
+		output.chars += countChars(init, limit);
+		if (pos < blocks.length) {
+			state = pos;
+			blocks[state].state = STATE_READY;
+		}
+		else
 			state = STATE_USED;
-			if (blkName == null) //initial block
-				writerBox[0].flush();
+	}
+
+	//Adds recursively the parts of the block to the given digest:
+	private long digestTemplate(long h) {
+		h = digest(h, blkName == null ? "" : blkName);
+		if (lazy != null) //the same with or without parsing it
+			return (h ^ lazy.digest) * FNV_PRIME;
+		h = digest(h, texts.length);
+		for (int i = 0; i < texts.length; i++) {
+			h = digest(h, texts[i]);
+			h = digest(h, slots[i]);
+		}
+		h = digest(h, places.length);
+		for (String place : places)
+			h = digest(h, place);
+		h = digest(h, blocks.length);
+		for (int i = 0; i < blocks.length; i++) {
+			h = digest(h, ranges[i]);
+			h = blocks[i].digestTemplate(h);
+		}
+		return h;
+	}
+
+	//64-bit FNV-1a hash of the chars of the string after its length:
+	private static long digest(long h, String str) {
+		h = digest(h, str.length());
+		for (int i = 0; i < str.length(); i++)
+			h = (h ^ str.charAt(i)) * FNV_PRIME;
+		return h;
+	}
+
+	private static long digest(long h, int n) {
+		h = (h ^ (n & 0xffff)) * FNV_PRIME;
+		return (h ^ (n >>> 16)) * FNV_PRIME;
+	}
+
+	private long countChars(int init, int limit) {
+		long chars = 0;
+		for (int i = init; i < limit; i++) {
+			chars += texts[i].length();
+			int slot = slots[i];
+			if (slot > -1)
+				chars += values[slot].length();
 		}
+		return chars;
+	}
+
+	//Ends the page in progress, if any, notifying the monitor:
+	private void aborted(String msg, Throwable cause) {
+		if (! output.running)
+			return;
+		output.running = false;
+		RepMonitor monitor = output.monitor;
+		if (monitor != null)
+			monitor.aborted(this, msg, cause);
 	}
 
 	private static final Pattern startTagPat =
@@ -492,18 +1382,44 @@ public class RepBlk {
 	//adding parts of the text to the texts list and the names of the found
 	//variables to the varNames list, adding the same number of elements to
 	//both lists and returning that number (since both lists must have
-	//equal size some variable names are null).
+	//equal size some variable names are null). The added texts are
+	//minified after finding the variables, if a minifier is given, and
+	//then divided in parts without variables, if an interner is given.
 	private static int parseVariables(String text,
 			HashMap<String,String> varsMap,
-			ArrayList<String> texts, ArrayList<String> varNames) {
+			ArrayList<String> texts, ArrayList<String> varNames,
+			RepMinifier minifier, RepInterner interner) {
 		int added = 1;
 		while ((text = findNextVar(text, varsMap, texts, varNames))
 				!= null)
 			added++;
+		int size = texts.size();
+		if (minifier != null)
+			for (int i = size - added; i < size; i++) {
+				if (i > size - added)
+					minifier.afterValue();
+				texts.set(i, minifier.minify(texts.get(i)));
+			}
+		if (interner != null) {
+			ArrayList<String> parts = new ArrayList<String>();
+			ArrayList<String> names = new ArrayList<String>();
+			for (int i = size - added; i < size; i++) {
+				interner.split(texts.get(i), parts);
+				while (names.size() < parts.size() - 1)
+					names.add(null);
+				names.add(varNames.get(i));
+			}
+			texts.subList(size - added, size).clear();
+			varNames.subList(size - added, size).clear();
+			texts.addAll(parts);
+			varNames.addAll(names);
+			added = parts.size();
+		}
 		return added;
 	}
 
-	//Searches in the text the first occurrence of a value of varsMap and
+	//Searches in the text the first occurrence of a value of varsMap
+	//(the longest if several are found in the same position), and
 	//if it is found returns the rest of the text after the found value,
 	//adding the text before the value to the texts list and
 	//adding the key of the value to the varNames list. If no value is
@@ -515,7 +1431,10 @@ public class RepBlk {
 		String nextVar = null;
 		for (String var : varsMap.keySet()) {
 			int pos = text.indexOf(varsMap.get(var));
-			if (pos > -1 && pos < nextPos) {
+			if (pos > -1 && (pos < nextPos || pos == nextPos &&
+					nextVar != null && //longest place first
+					varsMap.get(var).length() >
+					varsMap.get(nextVar).length())) {
 				nextPos = pos;
 				nextVar = var;
 			}
@@ -538,7 +1457,7 @@ public class RepBlk {
 	}
 
 	//reader to string method that close the reader only when needed:
-	private static String readAll(Reader reader) throws IOException {
+	static String readAll(Reader reader) throws IOException {
 		StringBuilder result = new StringBuilder();
 		boolean needClose = (reader != null);
 		try {
@@ -558,6 +1477,15 @@ public class RepBlk {
 		return result.toString();
 	}
 
+	//Returns the minifier for the options, or null if not requested:
+	private static RepMinifier checkOptions(int options) {
+		if ((options & ~(OPT_MINIFY | OPT_LAZY | OPT_PARALLEL)) != 0)
+			throwBadArg(ERR_INVALID_OPTIONS);
+		if ((options & OPT_MINIFY) != 0)
+			return new RepMinifier();
+		return null;
+	}
+
 	private static void throwBadArg(String msg) {
 		throw new IllegalArgumentException(msg);
 	}
@@ -566,5 +1494,124 @@ public class RepBlk {
 		throw new IllegalStateException(msg);
 	}
 
+	//Source of a block of a template with OPT_LAZY, shared by the copies
+	//of the template, which is parsed the first time that it is needed.
+	private static final class Lazy {
+		private final String blkName;
+		private final RepInterner interner;
+		private final int options; //to parse the block
+		private RepMinifier minifier; //state when the block was found
+		private String tpl; //text of the block, null when parsed
+		private RepBlk parsed; //without Output, only to be copied
+		private ForkJoinTask<?> task; //parsing it in other thread
+		private int chunkLength = -1; //for precompressTexts
+		private int chunkLevel;
+		//digest of the text of the block and of the options that
+		//change the texts parsed from it:
+		final long digest;
+
+		//Finds the end of the block whose start tag has been removed
+		//from tplBox[0], removing also the block and its end tag:
+		Lazy(String blkName, String[] tplBox, RepMinifier minifier,
+				RepInterner interner, int options) {
+			this.blkName = blkName;
+			this.interner = interner;
+			this.options = options;
+			String text = tplBox[0];
+			int level = 0;
+			int end = -1; //end of the end tag of the block
+			HashMap<String,String> attribs =
+					new HashMap<String,String>();
+			Matcher m = startTagPat.matcher(text);
+			while (end < 0 && m.find()) {
+				int pos = text.indexOf(endComment, m.end());
+				if (pos < 0)
+					throwBadArg(ERR_END_NOT_FOUND);
+				if (text.charAt(m.start(1)) != '/') {
+					parseAttributes(trimEnd(text.substring(
+						m.end(), pos)), attribs);
+					if (attribs.get("blk") != null)
+						level++;
+				}
+				else if (level-- == 0)
+					end = pos + endComment.length();
+			}
+			if (end < 0)
+				throwBadArg(ERR_NOT_CLOSED_BLK + ": " +
+						blkName);
+			tpl = text.substring(0, end);
+			tplBox[0] = text.substring(end);
+			digest = digest(digest(FNV_OFFSET,
+					options & OPT_MINIFY), tpl);
+			if (minifier != null) {
+				this.minifier = new RepMinifier(minifier);
+				minifier.skip(tpl);
+			}
+		}
+
+		synchronized int length() {
+			return (tpl != null ? tpl.length() : 0);
+		}
+
+		//starts parsing the block in the common ForkJoinPool:
+		void fork() {
+			task = ForkJoinTask.adapt(new Runnable() {
+				public void run() {
+					parse();
+				}
+			});
+			ForkJoinPool.commonPool().execute(task);
+		}
+
+		//waits until the block forked is parsed, parsing it again
+		//to throw the error if it failed:
+		RepBlk join() {
+			if (task != null)
+				task.quietlyJoin();
+			return parse();
+		}
+
+		synchronized RepBlk parse() {
+			if (parsed == null) {
+				parsed = new RepBlk(blkName,
+					new String[] { tpl }, new Output(),
+					(minifier != null ? new RepMinifier(
+					minifier) : null), interner, options);
+				tpl = null;
+				minifier = null;
+				if (chunkLength > -1)
+					parsed.precompressTexts(chunkLength,
+							chunkLevel);
+			}
+			return parsed;
+		}
+
+		synchronized void precompress(int minLength, int level) {
+			chunkLength = minLength;
+			chunkLevel = level;
+			if (parsed != null)
+				parsed.precompressTexts(minLength, level);
+		}
+	}
+
+	//Output of the pages shared by all the blocks of a hierarchy:
+	static final class Output {
+		Writer writer;
+		RepMonitor monitor;
+		boolean running; //page started but not finished or aborted
+		long startTime; //time of the start, only when monitored
+		long chars; //written in the page, when monitored or dry run
+		Object monitorData; //kept by the monitor during the page
+		int flushes; //times the writer was flushed in the page
+		int flushDepth = -1; //blocks up to this depth flush the writer
+		StringBuilder capture; //text written by the cached blocks
+		int captures; //number of blocks being captured
+		boolean dryRun; //started with startDigest or startRecording
+		RepRecording.Recorder recorder; //for startRecording, or null
+		long digest; //digest of the page started with startDigest
+		long tplDigest; //digest of the template, shared by the copies
+		Object lease; //kept by the RepPool while the block is lent
+	}
+
 }
 
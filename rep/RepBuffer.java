@@ -0,0 +1,230 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * RepBuffer is a Writer that keeps the written text in memory, to get it
+ * as a String or as bytes, for example to cache a page or to send it with
+ * its Content-Length.
+ *
+ * <p>Unlike StringWriter and CharArrayWriter it is not synchronized, so it
+ * must be used by one thread at a time. It should be created with the
+ * expected length of the page, like the length returned by
+ * RepBlk.getTextLength, or the exact length returned by RepBlk.getLength
+ * after processing the page with RepBlk.startDigest, so the text is written
+ * without growing the buffer.</p>
+ */
+public class RepBuffer extends Writer {
+
+	private static final String
+	ERR_NEGATIVE_CAPACITY = "Negative capacity";
+
+	private char[] buf;
+	private int count;
+
+	/**
+	 * Creates a buffer with a small initial capacity.
+	 */
+	public RepBuffer() {
+		this(256);
+	}
+
+	/**
+	 * Creates a buffer with the given initial capacity in chars.
+	 */
+	public RepBuffer(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException(
+					ERR_NEGATIVE_CAPACITY);
+		buf = new char[capacity];
+	}
+
+	public void write(int c) {
+		ensureCapacity(count + 1);
+		buf[count++] = (char) c;
+	}
+
+	public void write(char[] cbuf, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(cbuf, off, buf, count, len);
+		count += len;
+	}
+
+	public void write(String str) {
+		write(str, 0, str.length());
+	}
+
+	public void write(String str, int off, int len) {
+		ensureCapacity(count + len);
+		str.getChars(off, off + len, buf, count);
+		count += len;
+	}
+
+	public void flush() {
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * Returns the number of chars written since created or reset.
+	 */
+	public int length() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of chars that can be written without growing.
+	 */
+	public int capacity() {
+		return buf.length;
+	}
+
+	/**
+	 * Discards the written text to reuse the buffer, keeping its capacity.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Returns the written text.
+	 */
+	public String toString() {
+		return new String(buf, 0, count);
+	}
+
+	/**
+	 * Returns the written text encoded as UTF-8, in an array of the exact
+	 * size computed before encoding it.
+	 */
+	public byte[] toUtf8() {
+		byte[] bytes = new byte[utf8Length()];
+		encodeUtf8(bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Encodes the written text as UTF-8 in the given buffer, from its
+	 * start, and returns it ready to be read, to reuse the same buffer for
+	 * many pages. If the given buffer is too small or it has no accessible
+	 * array, a new buffer is returned, which should be used the next time.
+	 */
+	public ByteBuffer toUtf8(ByteBuffer buffer) {
+		int length = utf8Length();
+		if (buffer == null || ! buffer.hasArray() ||
+				buffer.capacity() < length)
+			buffer = ByteBuffer.allocate(Math.max(length,
+				buffer != null ? buffer.capacity() * 2 : 0));
+		buffer.clear();
+		encodeUtf8(buffer.array(), buffer.arrayOffset());
+		buffer.limit(length);
+		return buffer;
+	}
+
+	private int utf8Length() {
+		int length = 0;
+		for (int i = 0; i < count; i++) {
+			int cp = codePointAt(i);
+			if (cp > 0xffff)
+				i++;
+			length += (cp < 0x80 ? 1 : cp < 0x800 ? 2 :
+					cp < 0x10000 ? 3 : 4);
+		}
+		return length;
+	}
+
+	//Encodes the text from the given position of the array:
+	private void encodeUtf8(byte[] bytes, int n) {
+		for (int i = 0; i < count; i++) {
+			int cp = codePointAt(i);
+			if (cp < 0x80)
+				bytes[n++] = (byte) cp;
+			else {
+				int shift;
+				if (cp < 0x800) {
+					bytes[n++] = (byte) (0xc0 | (cp >> 6));
+					shift = 0;
+				}
+				else if (cp < 0x10000) {
+					bytes[n++] = (byte) (0xe0 | (cp >> 12));
+					shift = 6;
+				}
+				else {
+					bytes[n++] = (byte) (0xf0 | (cp >> 18));
+					shift = 12;
+					i++;
+				}
+				for (; shift >= 0; shift -= 6)
+					bytes[n++] = (byte) (0x80 |
+						((cp >> shift) & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Returns the written text encoded with the given charset.
+	 */
+	public byte[] toBytes(Charset charset) {
+		if (charset.name().equals("UTF-8"))
+			return toUtf8();
+		ByteBuffer bb = charset.encode(CharBuffer.wrap(buf, 0,
+				count));
+		byte[] bytes = new byte[bb.remaining()];
+		bb.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Writes the written text to the given Writer.
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		writer.write(buf, 0, count);
+	}
+
+	//Returns the code point at the given position of the buffer, or '?'
+	//if it is an unpaired surrogate, like String.getBytes:
+	private int codePointAt(int i) {
+		char c = buf[i];
+		if (! Character.isSurrogate(c))
+			return c;
+		if (Character.isHighSurrogate(c) && i + 1 < count &&
+				Character.isLowSurrogate(buf[i + 1]))
+			return Character.toCodePoint(c, buf[i + 1]);
+		return '?';
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity < 0)
+			throw new OutOfMemoryError();
+		if (capacity > buf.length) {
+			int length = Math.max(capacity, buf.length * 2);
+			if (length < 0)
+				length = capacity;
+			char[] result = new char[length];
+			System.arraycopy(buf, 0, result, 0, count);
+			buf = result;
+		}
+	}
+
+}
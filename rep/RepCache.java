@@ -0,0 +1,176 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RepCache keeps the text written by the repetitions of a block, to write
+ * it again without processing the block and its children when the block is
+ * started with the same values in its variables and the same key.
+ *
+ * <p>A RepCache is assigned to a block with RepBlk.setCache and it is used
+ * by RepBlk.startCached. It can be shared by many blocks and templates and
+ * by many threads: the keys include the digest of the template and the
+ * path of the block, so a template never uses the texts of other template
+ * or of an older version of itself, like one replaced by RepRegistry,
+ * whose entries are removed as the least recently used ones.</p>
+ *
+ * <p>The entries are divided in segments with their own lock, and each
+ * segment removes its least recently used entry when it is full. The
+ * entries can also expire after a time since they were added.</p>
+ */
+public class RepCache {
+
+	private static final String
+	ERR_INVALID_SIZE = "The maximum number of entries must be positive";
+
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final long ttlNanos; //0 if the entries do not expire
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	//text of an entry and the time when it expires:
+	private static final class Entry {
+		final String text;
+		final long expires;
+
+		Entry(String text, long expires) {
+			this.text = text;
+			this.expires = expires;
+		}
+	}
+
+	//part of the entries, ordered from the least recently used:
+	private static final class Segment
+			extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		Segment(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		protected boolean removeEldestEntry(
+				Map.Entry<String, Entry> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	/**
+	 * Creates a cache that keeps at most the given number of entries
+	 * (approximately, since they are divided in segments), which expire
+	 * after the given milliseconds, or never if it is not positive.
+	 */
+	public RepCache(int maxEntries, long ttlMillis) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException(ERR_INVALID_SIZE);
+		//small caches have fewer segments to keep the LRU order:
+		int count = Math.min(MAX_SEGMENTS, (maxEntries + 15) / 16);
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++)
+			segments[i] = new Segment((maxEntries + count - 1 - i)
+					/ count);
+		ttlNanos = (ttlMillis > 0 ? ttlMillis * 1000000 : 0);
+	}
+
+	/**
+	 * Returns the text kept with the given key, or null if it is not
+	 * found or it has expired.
+	 */
+	public String get(String key) {
+		Segment segment = segmentOf(key);
+		Entry entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+			if (entry != null && ttlNanos > 0 &&
+					System.nanoTime() - entry.expires > 0) {
+				segment.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.text;
+	}
+
+	/**
+	 * Keeps the text with the given key, replacing the previous one.
+	 */
+	public void put(String key, String text) {
+		Entry entry = new Entry(text, System.nanoTime() + ttlNanos);
+		Segment segment = segmentOf(key);
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+	}
+
+	/**
+	 * Removes all the entries, for example when the data used to write
+	 * them has changed.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of entries kept, including the expired entries
+	 * that have not been removed yet.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of calls to get that found the text.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of calls to get that did not find the text.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	private Segment segmentOf(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+//Text of a template compressed in raw deflate blocks that end in a byte
+//boundary (with a SYNC_FLUSH and without the final block), so they can be
+//inserted in other deflate stream after a SYNC_FLUSH. Its CRC32 and length
+//in bytes are combined with the CRC32 of the gzip stream.
+final class RepChunk {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	final String text;
+	final byte[] data; //compressed bytes
+	final long crc; //CRC32 of the UTF-8 bytes of the text
+	final int length; //number of UTF-8 bytes of the text
+
+	RepChunk(String text, int level) {
+		byte[] bytes = text.getBytes(UTF8);
+		CRC32 crc32 = new CRC32();
+		crc32.update(bytes, 0, bytes.length);
+		Deflater deflater = new Deflater(level, true);
+		deflater.setInput(bytes);
+		byte[] buf = new byte[bytes.length / 2 + 64];
+		int n = 0;
+		while (true) {
+			n += deflater.deflate(buf, n, buf.length - n,
+					Deflater.SYNC_FLUSH);
+			if (n < buf.length)
+				break;
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		deflater.end();
+		this.text = text;
+		this.data = Arrays.copyOf(buf, n);
+		this.crc = crc32.getValue();
+		this.length = bytes.length;
+	}
+
+	//Returns the CRC32 of two sequences of bytes from their CRC32 values
+	//and the length of the second one, like crc32_combine of zlib:
+	static long combine(long crc1, long crc2, long len2) {
+		if (len2 <= 0)
+			return crc1;
+		long[] even = new long[32]; //operator for even powers of two
+		long[] odd = new long[32]; //operator for odd powers of two
+		odd[0] = 0xedb88320L; //CRC-32 polynomial
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd); //operator for two zero bits
+		square(odd, even); //operator for four zero bits
+		//applies len2 zeros to crc1 (the first square gives the
+		//operator for one zero byte, eight zero bits):
+		do {
+			square(even, odd);
+			if ((len2 & 1) != 0)
+				crc1 = times(even, crc1);
+			len2 >>= 1;
+			if (len2 == 0)
+				break;
+			square(odd, even);
+			if ((len2 & 1) != 0)
+				crc1 = times(odd, crc1);
+			len2 >>= 1;
+		} while (len2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] mat, long vec) {
+		long sum = 0;
+		for (int i = 0; vec != 0; i++, vec >>>= 1)
+			if ((vec & 1) != 0)
+				sum ^= mat[i];
+		return sum;
+	}
+
+	private static void square(long[] square, long[] mat) {
+		for (int n = 0; n < 32; n++)
+			square[n] = times(mat, mat[n]);
+	}
+
+}
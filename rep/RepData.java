@@ -0,0 +1,419 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RepData reads the records of a file in the JSON Lines or CSV formats one
+ * at a time, and gives their fields to the blocks of a template, so files
+ * of any size can be written in pages keeping only one record in memory.
+ *
+ * <p>Each record is a Map from the names of its fields to their values.
+ * In JSON Lines, each line has an object whose values are kept as Strings
+ * (the numbers and booleans with their text in the line), Lists of values
+ * for the arrays and Maps for the objects, without the null values. In CSV
+ * the first line has the names of the fields, and the values of the other
+ * lines are Strings, which can be quoted with double quotes.</p>
+ *
+ * <p>A record is given to a block by its names: the String fields are set
+ * as the values of the variables with the same name (the variables without
+ * a field are written with their places), and the fields with the name of
+ * a child block repeat the child once for each object of the List (or once
+ * for an object), giving it the fields of that object. The child blocks
+ * without a field in the record are skipped.</p>
+ */
+public class RepData implements Closeable {
+
+	private static final String
+	ERR_INVALID_JSON = "Invalid JSON",
+	ERR_INVALID_CSV = "Invalid CSV",
+	ERR_NOT_OBJECT = "Expected objects in the field of block";
+
+	private final BufferedReader reader;
+	private final boolean csv;
+	private List<String> header; //names of the CSV fields
+	private int lineNum; //of the last line read
+	private String line; //JSON line being parsed
+	private int pos; //position in line
+
+	private RepData(Reader reader, boolean csv) {
+		this.reader = (reader instanceof BufferedReader ?
+				(BufferedReader) reader :
+				new BufferedReader(reader));
+		this.csv = csv;
+	}
+
+	/**
+	 * Creates a reader of records in the JSON Lines format, one object
+	 * in each line. The empty lines are ignored.
+	 */
+	public static RepData jsonLines(Reader reader) {
+		return new RepData(reader, false);
+	}
+
+	/**
+	 * Creates a reader of records in the CSV format, with the names of
+	 * the fields in the first line.
+	 */
+	public static RepData csv(Reader reader) {
+		return new RepData(reader, true);
+	}
+
+	/**
+	 * Returns the next record, or null at the end of the file. Throws an
+	 * IllegalArgumentException with the number of the line if the record
+	 * is not valid.
+	 */
+	public Map<String, Object> next() throws IOException {
+		if (csv) {
+			if (header == null) {
+				header = readCsvLine();
+				if (header == null)
+					return null;
+			}
+			List<String> values = readCsvLine();
+			if (values == null)
+				return null;
+			Map<String, Object> record =
+					new LinkedHashMap<String, Object>();
+			for (int i = 0; i < values.size() &&
+					i < header.size(); i++)
+				record.put(header.get(i), values.get(i));
+			return record;
+		}
+		while ((line = reader.readLine()) != null) {
+			lineNum++;
+			pos = 0;
+			skipSpaces();
+			if (pos == line.length())
+				continue;
+			if (line.charAt(pos) != '{')
+				throw invalid(ERR_INVALID_JSON);
+			Object record = readJson();
+			skipSpaces();
+			if (pos < line.length())
+				throw invalid(ERR_INVALID_JSON);
+			@SuppressWarnings("unchecked")
+			Map<String, Object> map = (Map<String, Object>) record;
+			return map;
+		}
+		return null;
+	}
+
+	/**
+	 * Closes the Reader.
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Writes a page with the given initial block and the fields of the
+	 * record, starting it with the given Writer and finishing it.
+	 */
+	public static void write(RepBlk page, Writer writer,
+			Map<String, ?> record) throws IOException {
+		setVars(page, record);
+		page.start(writer);
+		writeChildren(page, record);
+		page.end();
+	}
+
+	/**
+	 * Records a page like write, with startRecording.
+	 */
+	public static void record(RepBlk page, Map<String, ?> record)
+			throws IOException {
+		setVars(page, record);
+		page.startRecording();
+		writeChildren(page, record);
+		page.end();
+	}
+
+	/**
+	 * Writes a repetition of the given block, not the initial one, for
+	 * each of the remaining records, or skips it if there are none, and
+	 * returns the number of records. The parent of the block must be
+	 * allowed to start or skip it, and next must be called on the parent
+	 * after this.
+	 */
+	public static long write(RepBlk blk, RepData data) throws IOException {
+		long count = 0;
+		Map<String, Object> record;
+		while ((record = data.next()) != null) {
+			setVars(blk, record);
+			blk.start();
+			writeChildren(blk, record);
+			count++;
+		}
+		if (count == 0)
+			blk.skip();
+		return count;
+	}
+
+	/**
+	 * Returns a page for RepBatch with the given path, written with the
+	 * fields of the given record.
+	 */
+	public static RepBatch.RecordedPage page(final String path,
+			final Map<String, ?> record) {
+		return new RepBatch.RecordedPage() {
+			public String getPath() {
+				return path;
+			}
+
+			public void write(RepBlk page, Writer writer)
+					throws IOException {
+				RepData.write(page, writer, record);
+			}
+
+			public void record(RepBlk page) throws IOException {
+				RepData.record(page, record);
+			}
+		};
+	}
+
+	//Sets the variables of the block to the String fields, or to the
+	//texts of their places for the missing fields:
+	private static void setVars(RepBlk blk, Map<String, ?> record) {
+		blk.resetVars();
+		for (String name : blk.getVarNames()) {
+			Object value = record.get(name);
+			if (value instanceof String)
+				blk.setVar(name, (String) value);
+		}
+	}
+
+	//Repeats the children of a started block with the objects of their
+	//fields, writing the rest of the block:
+	private static void writeChildren(RepBlk blk, Map<String, ?> record)
+			throws IOException {
+		List<String> names = blk.getBlkNames();
+		for (int i = 0; i < names.size(); i++) {
+			RepBlk child = blk.getBlk(i);
+			Object value = record.get(names.get(i));
+			List<?> list = (value instanceof List ? (List<?>) value
+					: value instanceof Map ?
+					Collections.singletonList(value) :
+					Collections.emptyList());
+			if (list.isEmpty())
+				child.skip();
+			for (Object item : list) {
+				if (! (item instanceof Map))
+					throw new IllegalArgumentException(
+						ERR_NOT_OBJECT + ": " +
+						names.get(i));
+				Map<?, ?> map = (Map<?, ?>) item;
+				@SuppressWarnings("unchecked")
+				Map<String, ?> fields = (Map<String, ?>) map;
+				setVars(child, fields);
+				child.start();
+				writeChildren(child, fields);
+			}
+			blk.next();
+		}
+	}
+
+	//Reads the values of a CSV record, which can have many lines inside
+	//quoted values, or returns null at the end of the file:
+	private List<String> readCsvLine() throws IOException {
+		String text = reader.readLine();
+		if (text == null)
+			return null;
+		lineNum++;
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		int i = 0;
+		while (true) {
+			if (i < text.length() && text.charAt(i) == '"') {
+				i++;
+				while (true) {
+					int end = text.indexOf('"', i);
+					if (end < 0) { //line break in value
+						value.append(text, i,
+							text.length());
+						value.append('\n');
+						text = reader.readLine();
+						if (text == null)
+							throw invalid(
+							ERR_INVALID_CSV);
+						lineNum++;
+						i = 0;
+						continue;
+					}
+					value.append(text, i, end);
+					i = end + 1;
+					if (i < text.length() &&
+						text.charAt(i) == '"') {
+						value.append('"');
+						i++;
+					}
+					else
+						break;
+				}
+				if (i < text.length() && text.charAt(i) != ',')
+					throw invalid(ERR_INVALID_CSV);
+			}
+			else {
+				int end = text.indexOf(',', i);
+				if (end < 0)
+					end = text.length();
+				value.append(text, i, end);
+				i = end;
+			}
+			values.add(value.toString());
+			value.setLength(0);
+			if (i >= text.length())
+				return values;
+			i++; //comma
+		}
+	}
+
+	//Reads the JSON value at pos in line:
+	private Object readJson() {
+		skipSpaces();
+		if (pos >= line.length())
+			throw invalid(ERR_INVALID_JSON);
+		char c = line.charAt(pos);
+		if (c == '{') {
+			Map<String, Object> map =
+					new LinkedHashMap<String, Object>();
+			pos++;
+			skipSpaces();
+			if (! accept('}')) {
+				do {
+					skipSpaces();
+					if (! accept('"'))
+						throw invalid(ERR_INVALID_JSON);
+					String name = readJsonString();
+					skipSpaces();
+					if (! accept(':'))
+						throw invalid(ERR_INVALID_JSON);
+					Object value = readJson();
+					if (value != null)
+						map.put(name, value);
+					skipSpaces();
+				} while (accept(','));
+				if (! accept('}'))
+					throw invalid(ERR_INVALID_JSON);
+			}
+			return map;
+		}
+		if (c == '[') {
+			List<Object> list = new ArrayList<Object>();
+			pos++;
+			skipSpaces();
+			if (! accept(']')) {
+				do {
+					list.add(readJson());
+					skipSpaces();
+				} while (accept(','));
+				if (! accept(']'))
+					throw invalid(ERR_INVALID_JSON);
+			}
+			return list;
+		}
+		if (c == '"') {
+			pos++;
+			return readJsonString();
+		}
+		int start = pos; //number, true, false or null
+		while (pos < line.length() && (Character.isLetterOrDigit(
+				c = line.charAt(pos)) || c == '-' || c == '+' ||
+				c == '.'))
+			pos++;
+		String literal = line.substring(start, pos);
+		if (literal.equals("null"))
+			return null;
+		if (literal.length() == 0 ||
+				Character.isLetter(literal.charAt(0)) &&
+				! literal.equals("true") &&
+				! literal.equals("false"))
+			throw invalid(ERR_INVALID_JSON);
+		return literal;
+	}
+
+	//Reads the rest of a JSON string after its opening quote:
+	private String readJsonString() {
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (pos >= line.length())
+				throw invalid(ERR_INVALID_JSON);
+			char c = line.charAt(pos++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (pos >= line.length())
+				throw invalid(ERR_INVALID_JSON);
+			c = line.charAt(pos++);
+			switch (c) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if (pos + 4 > line.length())
+					throw invalid(ERR_INVALID_JSON);
+				try {
+					sb.append((char) Integer.parseInt(
+						line.substring(pos, pos + 4),
+						16));
+				}
+				catch (NumberFormatException e) {
+					throw invalid(ERR_INVALID_JSON);
+				}
+				pos += 4;
+				break;
+			default: sb.append(c); //quote, slashes
+			}
+		}
+	}
+
+	private boolean accept(char c) {
+		if (pos < line.length() && line.charAt(pos) == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void skipSpaces() {
+		while (pos < line.length() &&
+				Character.isWhitespace(line.charAt(pos)))
+			pos++;
+	}
+
+	private IllegalArgumentException invalid(String msg) {
+		return new IllegalArgumentException(msg + " at line " +
+				lineNum);
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * RepDeflateWriter is a Writer that encodes the text as UTF-8 and writes it
+ * compressed to an OutputStream in the gzip or deflate (zlib) formats, to
+ * send pages with the Content-Encoding gzip or deflate.
+ *
+ * <p>The compressed data is only written to the stream when the internal
+ * buffers are full, when flush is called, which compresses all the text
+ * written so far with a SYNC_FLUSH, and when finish or close is called.
+ * The pages can be sent progressively by flushing only at some points,
+ * like with RepBlk.setFlushDepth, without reducing the compression by
+ * flushing after every write.</p>
+ *
+ * <p>In the gzip format, the texts precompressed with RepBlk.precompress
+ * are inserted in the stream as they are, without compressing them again,
+ * so the time of the compression depends only on the rest of the text.</p>
+ *
+ * <p>The Deflaters are taken from a pool and returned to it by finish,
+ * so they are reused by the next writers. A writer must be used by only
+ * one thread at a time.</p>
+ */
+public class RepDeflateWriter extends Writer {
+
+	private static final String
+	ERR_INVALID_LEVEL = "Invalid compression level",
+	ERR_FINISHED = "The compressed data has been finished";
+
+	private static final int POOL_SIZE = 64;
+	private static final int BUFFER_SIZE = 8192;
+
+	//Deflaters without reading or writing the zlib header and trailer,
+	//which are used for gzip, and Deflaters for the zlib format:
+	private static final ArrayBlockingQueue<Deflater> gzipPool =
+			new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	private static final ArrayBlockingQueue<Deflater> zlibPool =
+			new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+
+	//magic number, method, no flags or time, unknown OS:
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final OutputStream out;
+	private final boolean gzip;
+	private final CRC32 crc; //of the text given to the deflater, for gzip
+	private long prevCrc; //CRC32 of the text before the deflater was reset
+	private long prevLength; //bytes of the text before the reset
+	private final CharsetEncoder encoder;
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 3);
+	private final byte[] compressed = new byte[BUFFER_SIZE];
+	private Deflater deflater; //null when finished
+
+	/**
+	 * Creates a writer that writes the text in the gzip format with the
+	 * default compression level.
+	 */
+	public RepDeflateWriter(OutputStream out) throws IOException {
+		this(out, Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	/**
+	 * Creates a writer with the given compression level (0-9, or -1 for
+	 * the default level), that writes the text in the gzip format or in
+	 * the zlib format used by the Content-Encoding deflate.
+	 */
+	public RepDeflateWriter(OutputStream out, int level, boolean gzip)
+			throws IOException {
+		if (level < -1 || level > 9)
+			throw new IllegalArgumentException(ERR_INVALID_LEVEL);
+		this.out = out;
+		this.gzip = gzip;
+		crc = (gzip ? new CRC32() : null);
+		encoder = Charset.forName("UTF-8").newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		Deflater d = (gzip ? gzipPool : zlibPool).poll();
+		if (d == null)
+			d = new Deflater(level, gzip);
+		else
+			d.setLevel(level);
+		deflater = d;
+		if (gzip)
+			out.write(GZIP_HEADER);
+	}
+
+	public void write(int c) throws IOException {
+		checkNotFinished();
+		if (! chars.hasRemaining())
+			encode(false);
+		chars.put((char) c);
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		checkNotFinished();
+		while (len > 0) {
+			if (! chars.hasRemaining())
+				encode(false);
+			int n = Math.min(len, chars.remaining());
+			chars.put(cbuf, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		checkNotFinished();
+		while (len > 0) {
+			if (! chars.hasRemaining())
+				encode(false);
+			int n = Math.min(len, chars.remaining());
+			chars.put(str, off, off + n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Compresses all the text written and writes it to the stream using
+	 * a SYNC_FLUSH, so it can be decompressed by the receiver, and then
+	 * flushes the stream.
+	 */
+	public void flush() throws IOException {
+		if (deflater == null)
+			return;
+		encode(false);
+		syncFlush();
+		out.flush();
+	}
+
+	/**
+	 * Writes the rest of the compressed data and flushes the stream,
+	 * without closing it, and returns the Deflater to the pool.
+	 * Nothing more can be written after this call.
+	 */
+	public void finish() throws IOException {
+		if (deflater == null)
+			return;
+		encode(true);
+		deflater.finish();
+		while (! deflater.finished())
+			out.write(compressed, 0, deflater.deflate(compressed));
+		if (gzip) {
+			long length = deflater.getBytesRead();
+			writeInt((int) RepChunk.combine(prevCrc,
+					crc.getValue(), length));
+			writeInt((int) (prevLength + length));
+		}
+		out.flush();
+		Deflater d = deflater;
+		deflater = null;
+		d.reset();
+		if (! (gzip ? gzipPool : zlibPool).offer(d))
+			d.end();
+	}
+
+	/**
+	 * Finishes the compressed data, if not done yet, and closes the stream.
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	//Writes the precompressed text after the compressed data of the text
+	//written before, and resets the deflater, since the data compressed
+	//after that text cannot refer to it. If the text cannot be inserted,
+	//it is compressed like the rest of the text.
+	void writeChunk(RepChunk chunk) throws IOException {
+		checkNotFinished();
+		if (gzip)
+			encode(false);
+		if (! gzip || chars.position() > 0) { //half surrogate pair
+			write(chunk.text);
+			return;
+		}
+		syncFlush();
+		long length = deflater.getBytesRead();
+		prevCrc = RepChunk.combine(prevCrc, crc.getValue(), length);
+		prevCrc = RepChunk.combine(prevCrc, chunk.crc, chunk.length);
+		prevLength += length + chunk.length;
+		crc.reset();
+		deflater.reset();
+		out.write(chunk.data);
+	}
+
+	//Compresses the bytes given to the deflater ending in a byte boundary:
+	private void syncFlush() throws IOException {
+		int n;
+		do {
+			n = deflater.deflate(compressed, 0, compressed.length,
+					Deflater.SYNC_FLUSH);
+			out.write(compressed, 0, n);
+		} while (n == compressed.length);
+	}
+
+	//Encodes the chars written and compresses the resulting bytes:
+	private void encode(boolean endOfInput) throws IOException {
+		chars.flip();
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes,
+					endOfInput);
+			if (endOfInput && result.isUnderflow())
+				result = encoder.flush(bytes);
+			deflate();
+			if (result.isUnderflow())
+				break;
+		}
+		chars.compact();
+	}
+
+	//Compresses the encoded bytes, writing the compressed data produced:
+	private void deflate() throws IOException {
+		byte[] array = bytes.array();
+		int len = bytes.position();
+		if (len == 0)
+			return;
+		if (gzip)
+			crc.update(array, 0, len);
+		deflater.setInput(array, 0, len);
+		while (! deflater.needsInput()) {
+			int n = deflater.deflate(compressed);
+			out.write(compressed, 0, n);
+		}
+		bytes.clear();
+	}
+
+	private void writeInt(int n) throws IOException {
+		out.write(n);
+		out.write(n >> 8);
+		out.write(n >> 16);
+		out.write(n >> 24);
+	}
+
+	private void checkNotFinished() {
+		if (deflater == null)
+			throw new IllegalStateException(ERR_FINISHED);
+	}
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * RepGen generates the source code of a Java class for a Rep template,
+ * with a typed method for each block and for each variable of the template.
+ *
+ * <p>It is intended to be run from the build of a program, before compiling
+ * it, with the command:</p>
+ *
+ * <code>java rep.RepGen [-d OUTDIR] [-p PACKAGE] FILE.tpl.html ...</code>
+ *
+ * <p>For each file it writes a class named as the file (for example, the file
+ * <code>listpage.tpl.html</code> generates <code>ListpageTpl.java</code>)
+ * that wraps the initial RepBlk of the template and contains a nested class
+ * for each block. The names of the blocks and variables are resolved to
+ * their positions when the code is generated, so the program does not use
+ * names at all, for example:</p>
+ *
+ * <code>tpl.item().name("Smith").num("500").start();</code>
+ *
+ * <p>Any change in the structure of the template that affects the program
+ * will produce a compilation error after generating again the class.
+ * The generated class also checks when it is created that the given RepBlk
+ * still has the same blocks and variables, throwing an exception if not.</p>
+ */
+public class RepGen {
+
+	private static final String
+	ERR_NOT_MATCHING = "Template does not match the generated class";
+
+	private static final String[] reservedNames = {
+		"start", "skip", "next", "end", "getRepBlk", "blk",
+		"equals", "hashCode", "toString", "getClass",
+		"notify", "notifyAll", "wait", "clone", "finalize"
+	};
+
+	//types used by the generated code, that nested classes cannot hide:
+	private static final String[] reservedClassNames = {
+		"String", "Writer", "IOException", "RepBlk", "RepGen"
+	};
+
+	private static final String[] javaKeywords = {
+		"abstract", "assert", "boolean", "break", "byte", "case",
+		"catch", "char", "class", "const", "continue", "default",
+		"do", "double", "else", "enum", "extends", "false", "final",
+		"finally", "float", "for", "goto", "if", "implements",
+		"import", "instanceof", "int", "interface", "long", "native",
+		"new", "null", "package", "private", "protected", "public",
+		"return", "short", "static", "strictfp", "super", "switch",
+		"synchronized", "this", "throw", "throws", "transient", "true",
+		"try", "void", "volatile", "while", "var", "record", "yield"
+	};
+
+	/**
+	 * Generates the classes of the template files given as arguments.
+	 * Exits with an error status if any template is not valid.
+	 */
+	public static void main(String[] args) throws IOException {
+		File outDir = new File(".");
+		String pkg = null;
+		ArrayList<File> files = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-d") && i + 1 < args.length)
+				outDir = new File(args[++i]);
+			else if (args[i].equals("-p") && i + 1 < args.length)
+				pkg = args[++i];
+			else
+				files.add(new File(args[i]));
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: java rep.RepGen" +
+				" [-d OUTDIR] [-p PACKAGE] FILE.tpl.html ...");
+			System.exit(2);
+		}
+		if (pkg != null && pkg.length() > 0)
+			outDir = new File(outDir, pkg.replace('.', '/'));
+		outDir.mkdirs();
+		boolean failed = false;
+		for (File file : files) {
+			RepBlk tpl;
+			try {
+				tpl = new RepBlk(new FileReader(file));
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println(file + ": " +
+						e.getMessage());
+				failed = true;
+				continue;
+			}
+			String className = getClassName(file.getName());
+			Writer out = new FileWriter(new File(outDir,
+					className + ".java"));
+			try {
+				out.write(generate(tpl, pkg, className,
+						file.getName()));
+			}
+			finally {
+				out.close();
+			}
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	/**
+	 * Returns the name of the class generated for the given file name,
+	 * using the part of the name before the first dot and adding "Tpl".
+	 */
+	public static String getClassName(String fileName) {
+		int dot = fileName.indexOf('.');
+		String base = (dot > 0 ? fileName.substring(0, dot) : fileName);
+		return toCamelCase(base, true) + "Tpl";
+	}
+
+	/**
+	 * Returns the source code of the class for the given initial block.
+	 * The package can be null, and the source name is only used in the
+	 * header comment of the generated code.
+	 */
+	public static String generate(RepBlk tpl, String pkg,
+			String className, String sourceName) {
+		StringBuilder out = new StringBuilder();
+		out.append("//Generated by rep.RepGen from ").append(sourceName)
+			.append(", do not edit.\n");
+		if (pkg != null && pkg.length() > 0)
+			out.append("package ").append(pkg).append(";\n");
+		out.append("\n");
+		out.append("import java.io.IOException;\n");
+		out.append("import java.io.Writer;\n");
+		out.append("import rep.RepBlk;\n");
+		out.append("import rep.RepGen;\n");
+		out.append("\n");
+		HashSet<String> classNames = new HashSet<String>(
+				Arrays.asList(reservedClassNames));
+		classNames.add(className);
+		generateClass(out, tpl, className, "", classNames, true);
+		return out.toString();
+	}
+
+	/**
+	 * Checks that the given block has exactly the given names of variables
+	 * and blocks, in the same order, and returns the same block.
+	 * Used by the generated classes to detect templates that have changed.
+	 */
+	public static RepBlk checkBlk(RepBlk blk, String[] varNames,
+			String[] blkNames) {
+		List<String> vars = new ArrayList<String>(blk.getVarNames());
+		List<String> blks = blk.getBlkNames();
+		if (! vars.equals(Arrays.asList(varNames)) ||
+				! blks.equals(Arrays.asList(blkNames)))
+			throw new IllegalArgumentException(ERR_NOT_MATCHING +
+				": vars=" + vars + " blks=" + blks);
+		return blk;
+	}
+
+	//Appends the class of the block and recursively the nested classes:
+	private static void generateClass(StringBuilder out, RepBlk blk,
+			String className, String indent, Set<String> classNames,
+			boolean initial) {
+		List<String> blkNames = blk.getBlkNames();
+		List<String> varNames = new ArrayList<String>(
+				blk.getVarNames());
+		HashSet<String> used = new HashSet<String>(
+				Arrays.asList(reservedNames));
+		String[] varMethods = new String[varNames.size()];
+		for (int i = 0; i < varMethods.length; i++)
+			varMethods[i] = uniqueName(toCamelCase(varNames.get(i),
+					false), used);
+		String[] blkMethods = new String[blkNames.size()];
+		String[] blkClasses = new String[blkNames.size()];
+		for (int i = 0; i < blkMethods.length; i++) {
+			blkMethods[i] = uniqueName(toCamelCase(blkNames.get(i),
+					false), used);
+			blkClasses[i] = uniqueName(toCamelCase(blkNames.get(i),
+					true), classNames);
+		}
+		String in = indent + "\t";
+		out.append(indent).append(initial ? "public class " :
+				"public static class ").append(className)
+				.append(" {\n\n");
+		out.append(in).append("private final RepBlk blk;\n");
+		for (int i = 0; i < blkMethods.length; i++)
+			out.append(in).append("private final ")
+				.append(blkClasses[i]).append(" ")
+				.append(blkMethods[i]).append(";\n");
+		out.append("\n");
+		out.append(in).append(initial ? "public " : "")
+			.append(className).append("(RepBlk blk) {\n");
+		out.append(in).append("\tthis.blk = RepGen.checkBlk(blk,\n");
+		out.append(in).append("\t\tnew String[] {")
+			.append(joinQuoted(varNames)).append("},\n");
+		out.append(in).append("\t\tnew String[] {")
+			.append(joinQuoted(blkNames)).append("});\n");
+		for (int i = 0; i < blkMethods.length; i++)
+			out.append(in).append("\tthis.").append(blkMethods[i])
+				.append(" = new ").append(blkClasses[i])
+				.append("(blk.getBlk(").append(i)
+				.append("));\n");
+		out.append(in).append("}\n\n");
+		out.append(in).append("public RepBlk getRepBlk() {\n");
+		out.append(in).append("\treturn blk;\n");
+		out.append(in).append("}\n\n");
+		for (int i = 0; i < varMethods.length; i++) {
+			out.append(in).append("public ").append(className)
+				.append(" ").append(varMethods[i])
+				.append("(String value) {\n");
+			out.append(in).append("\tblk.setVar(").append(i)
+				.append(", value);\n");
+			out.append(in).append("\treturn this;\n");
+			out.append(in).append("}\n\n");
+		}
+		for (int i = 0; i < blkMethods.length; i++) {
+			out.append(in).append("public ").append(blkClasses[i])
+				.append(" ").append(blkMethods[i])
+				.append("() {\n");
+			out.append(in).append("\treturn ").append(blkMethods[i])
+				.append(";\n");
+			out.append(in).append("}\n\n");
+		}
+		if (initial) {
+			appendCall(out, in, className, "start", "Writer writer",
+					"writer", true);
+			if (! blkNames.isEmpty())
+				appendCall(out, in, className, "next", "", "",
+						true);
+			out.append(in).append("public void end()" +
+					" throws IOException {\n");
+			out.append(in).append("\tblk.end();\n");
+			out.append(in).append("}\n");
+		}
+		else {
+			appendCall(out, in, className, "start", "", "", true);
+			if (! blkNames.isEmpty())
+				appendCall(out, in, className, "next", "", "",
+						true);
+			appendCall(out, in, className, "skip", "", "", false);
+			out.setLength(out.length() - 1); //no blank line at end
+		}
+		for (int i = 0; i < blkMethods.length; i++) {
+			out.append("\n");
+			generateClass(out, blk.getBlk(i), blkClasses[i], in,
+					classNames, false);
+		}
+		out.append(indent).append("}\n");
+	}
+
+	private static void appendCall(StringBuilder out, String in,
+			String className, String method, String params,
+			String args, boolean throwsIO) {
+		out.append(in).append("public ").append(className).append(" ")
+			.append(method).append("(").append(params).append(")")
+			.append(throwsIO ? " throws IOException" : "")
+			.append(" {\n");
+		out.append(in).append("\tblk.").append(method).append("(")
+			.append(args).append(");\n");
+		out.append(in).append("\treturn this;\n");
+		out.append(in).append("}\n\n");
+	}
+
+	//converts a name of the template to a valid Java identifier:
+	private static String toCamelCase(String name, boolean upperFirst) {
+		StringBuilder result = new StringBuilder();
+		boolean upper = upperFirst;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (! Character.isJavaIdentifierPart(c) || c == '$') {
+				upper = (result.length() > 0 || upperFirst);
+				continue;
+			}
+			if (result.length() == 0 &&
+					! Character.isJavaIdentifierStart(c))
+				result.append(upperFirst ? "B" : "b");
+			result.append(upper ? Character.toUpperCase(c) : c);
+			upper = false;
+		}
+		if (result.length() == 0)
+			result.append(upperFirst ? "B" : "b");
+		String str = result.toString();
+		if (Arrays.asList(javaKeywords).contains(str))
+			str = str + "_";
+		return str;
+	}
+
+	//adds underscores to the name while it is already used:
+	private static String uniqueName(String name, Set<String> used) {
+		while (used.contains(name))
+			name = name + "_";
+		used.add(name);
+		return name;
+	}
+
+	private static String joinQuoted(List<String> names) {
+		StringBuilder result = new StringBuilder();
+		for (String name : names) {
+			if (result.length() > 0)
+				result.append(", ");
+			result.append('"');
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if (c == '"' || c == '\\')
+					result.append('\\').append(c);
+				else if (c < ' ')
+					result.append(String.format("\\u%04x",
+							Integer.valueOf(c)));
+				else
+					result.append(c);
+			}
+			result.append('"');
+		}
+		return result.toString();
+	}
+
+}
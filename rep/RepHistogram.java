@@ -0,0 +1,110 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Lock-free histogram of positive values with a relative error of 1/8.
+//The values below 8 have their own bucket, and every range of values
+//between two powers of 2 is divided in 8 buckets of the same size.
+final class RepHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts =
+			new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		long prev;
+		while (value > (prev = max.get()) &&
+				! max.compareAndSet(prev, value))
+			; //retried until max is updated by this or other thread
+	}
+
+	long getCount() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	//Returns the highest value of the bucket that contains the value
+	//at the given fraction (0.5, 0.99...) of the recorded values:
+	long getPercentile(double fraction) {
+		long[] snapshot = new long[counts.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++)
+			total += (snapshot[i] = counts.get(i));
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	//Halves the counts, so the values recorded before weigh less than the
+	//next ones, keeping the maximum:
+	void decay() {
+		for (int i = 0; i < counts.length(); i++) {
+			long n;
+			do {
+				n = counts.get(i);
+			} while (n > 0 && ! counts.compareAndSet(i, n, n / 2));
+		}
+	}
+
+	void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		max.set(0);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	private static long highestValue(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int exp = index / SUB_COUNT + SUB_BITS - 1;
+		long sub = index % SUB_COUNT;
+		long size = 1L << (exp - SUB_BITS);
+		return ((SUB_COUNT + sub) << (exp - SUB_BITS)) + size - 1;
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+//Keeps a single instance of the equal texts of many templates. The long
+//texts are divided in parts whose ends depend only on their contents
+//(with a rolling hash of the last chars), so the same parts are found in
+//the texts that share a long substring, like a header, even when they
+//have other texts before it. The texts are weakly referenced, so they
+//are removed when no template uses them.
+final class RepInterner {
+
+	private static final int MIN_PART = 64; //chars of the parts
+	private static final int MAX_PART = 4096;
+	private static final long BOUNDARY_MASK = 511; //one end each 512
+	private static final long[] GEAR = new long[256]; //random values
+
+	static {
+		Random random = new Random(0x5265704cL); //same parts always
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	private final WeakHashMap<String, WeakReference<String>> texts =
+			new WeakHashMap<String, WeakReference<String>>();
+
+	//Returns the instance kept of a text equal to the given one:
+	synchronized String intern(String text) {
+		WeakReference<String> ref = texts.get(text);
+		String result = (ref != null ? ref.get() : null);
+		if (result == null) {
+			texts.put(text, new WeakReference<String>(text));
+			result = text;
+		}
+		return result;
+	}
+
+	//Adds to the list the parts of the text, already interned:
+	void split(String text, ArrayList<String> parts) {
+		int len = text.length();
+		int start = 0;
+		long hash = 0;
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			hash = (hash << 1) + GEAR[(c ^ (c >>> 8)) & 0xff];
+			int size = i + 1 - start;
+			if (size >= MIN_PART && len - i - 1 >= MIN_PART &&
+					((hash & BOUNDARY_MASK) == 0 ||
+					size >= MAX_PART) &&
+					! Character.isHighSurrogate(c)) {
+				parts.add(intern(text.substring(start, i + 1)));
+				start = i + 1;
+			}
+		}
+		parts.add(intern(start == 0 ? text : text.substring(start)));
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * RepJfr is a RepMonitor that emits Java Flight Recorder events for the
+ * parsing of a template and the writing of its pages, so they can be
+ * correlated with the rest of the events of the recordings.
+ *
+ * <p>The events are <code>rep.Parse</code>, committed after parsing the
+ * template with the time of the parsing, <code>rep.Render</code>, that
+ * lasts from the start to the end of the page, and <code>rep.Block</code>,
+ * committed after writing a part of a block only when it takes at least
+ * the threshold given to the constructor. The events are not created when
+ * they are not enabled in the recording.</p>
+ */
+public class RepJfr extends RepMonitor {
+
+	@Name("rep.Parse")
+	@Label("Rep Template Parse")
+	@Category("Rep")
+	static final class ParseEvent extends Event {
+		@Label("Template")
+		String template;
+		@Label("Length")
+		@Description("Length of the template in characters")
+		int length;
+		@Label("Tags")
+		int tagCount;
+		@Label("Blocks")
+		int blockCount;
+		@Label("Parse Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long parseTime;
+	}
+
+	@Name("rep.Render")
+	@Label("Rep Page Render")
+	@Category("Rep")
+	static final class RenderEvent extends Event {
+		@Label("Template")
+		String template;
+		@Label("Characters")
+		@Description("Length of the page written")
+		long chars;
+		@Label("Flushes")
+		int flushCount;
+		@Label("Aborted")
+		@Description("Message of the error that aborted the page")
+		String error;
+	}
+
+	@Name("rep.Block")
+	@Label("Rep Block Write")
+	@Category("Rep")
+	static final class BlockEvent extends Event {
+		@Label("Template")
+		String template;
+		@Label("Block")
+		@Description("Path of the block, like /list/item")
+		String path;
+		@Label("Position")
+		@Description("0 when started, or index of the previous child")
+		int pos;
+		@Label("Characters")
+		long chars;
+		@Label("Write Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long writeTime;
+	}
+
+	private final String name;
+	private final long blockThreshold;
+
+	/**
+	 * Creates the monitor for the template with the given name, that
+	 * emits the block events that last at least the given nanoseconds,
+	 * or none if it is negative.
+	 */
+	public RepJfr(String name, long blockThreshold) {
+		this.name = name;
+		this.blockThreshold = blockThreshold;
+	}
+
+	public void parsed(String name, RepBlk tpl, int length, long nanos) {
+		ParseEvent event = new ParseEvent();
+		if (! event.isEnabled())
+			return;
+		int[] counts = new int[2];
+		countTags(tpl, counts);
+		event.template = this.name;
+		event.length = length;
+		event.tagCount = counts[0];
+		event.blockCount = counts[1];
+		event.parseTime = nanos;
+		event.commit();
+	}
+
+	public void started(RepBlk page) {
+		RenderEvent event = new RenderEvent();
+		if (! event.isEnabled())
+			return;
+		event.template = name;
+		event.begin();
+		page.setMonitorData(event);
+	}
+
+	public void written(RepBlk blk, int pos, long chars, long nanos) {
+		if (blockThreshold < 0 || nanos < blockThreshold)
+			return;
+		BlockEvent event = new BlockEvent();
+		if (! event.isEnabled())
+			return;
+		event.template = name;
+		event.path = blk.getPath();
+		event.pos = pos;
+		event.chars = chars;
+		event.writeTime = nanos;
+		event.commit();
+	}
+
+	public void finished(RepBlk page, long chars, long nanos) {
+		RenderEvent event = (RenderEvent) page.getMonitorData();
+		if (event == null)
+			return;
+		event.end();
+		event.chars = chars;
+		event.flushCount = page.getFlushCount();
+		event.commit();
+	}
+
+	public void aborted(RepBlk blk, String msg, Throwable cause) {
+		RenderEvent event = (RenderEvent) blk.getMonitorData();
+		if (event == null)
+			return;
+		event.end();
+		event.chars = blk.getCharCount();
+		event.flushCount = blk.getFlushCount();
+		event.error = msg;
+		event.commit();
+	}
+
+	//counts the Rep tags of a template (one for each variable and two
+	//for each block) in counts[0] and the blocks in counts[1]:
+	private static void countTags(RepBlk blk, int[] counts) {
+		counts[0] += blk.getVarNames().size();
+		for (int i = 0; i < blk.getBlkNames().size(); i++) {
+			counts[0] += 2;
+			counts[1]++;
+			countTags(blk.getBlk(i), counts);
+		}
+	}
+
+}
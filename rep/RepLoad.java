@@ -0,0 +1,502 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * RepLoad renders a set of templates from many threads during a fixed time,
+ * measuring the throughput, the latency of the pages and the garbage
+ * collections, to compare the options of the templates and the flags of the
+ * JVM with a load like the one of a server.
+ *
+ * <p>Each thread uses its own copy of each template and renders them in
+ * turns, giving them the records of the data in turns with RepData, or
+ * writing all the blocks once with the texts of the places of the variables
+ * if there are no records. The pages are written to one of these sinks:</p>
+ *
+ * <ul>
+ * <li>SINK_NULL: a Writer that only counts the chars.</li>
+ * <li>SINK_STREAM: an OutputStreamWriter that encodes the page as UTF-8 in
+ * a BufferedOutputStream, flushed after each page, of a stream that only
+ * counts the bytes.</li>
+ * <li>SINK_FILE: a RepBuffer encoded as UTF-8 and written with a
+ * FileChannel to a temporary file of the thread, from its start.</li>
+ * </ul>
+ *
+ * <p>The latencies are kept in a histogram with a relative error of 1/8.
+ * A load test can be run from the command line with:</p>
+ *
+ * <code>java rep.RepLoad [-threads N] [-virtual] [-seconds S] [-warmup S]
+ * [-sink null|stream|file] [-minify] [-lazy] [-parallel] [-data FILE]
+ * TEMPLATE...</code>
+ *
+ * <p>The data file has the records in the CSV format if its name ends with
+ * <code>.csv</code>, and in the JSON Lines format otherwise. Like the rest
+ * of the library, RepLoad needs Java 11, but the virtual threads need Java
+ * 21, so they are looked up when requested and are rejected by the JVMs
+ * from Java 11 to 20.</p>
+ */
+public class RepLoad {
+
+	private static final String
+	ERR_NO_TEMPLATES = "No templates given",
+	ERR_INVALID_THREADS = "The number of threads must be positive",
+	ERR_INVALID_SINK = "Invalid sink",
+	ERR_NO_VIRTUAL = "Virtual threads are not supported by this JVM";
+
+	/** Sink that discards the pages, counting their chars. */
+	public static final int SINK_NULL = 0;
+	/** Sink that encodes the pages in a stream, counting the bytes. */
+	public static final int SINK_STREAM = 1;
+	/** Sink that writes the pages to temporary files. */
+	public static final int SINK_FILE = 2;
+
+	private static final String[] SINK_NAMES = { "null", "stream", "file" };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<RepBlk> templates;
+	private final List<? extends Map<String, ?>> records;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	//Thread.startVirtualThread of Java 21, or null:
+	private Method startVirtual;
+	private int sink = SINK_NULL;
+	private final RepHistogram latencies = new RepHistogram();
+	private long pages;
+	private long output; //chars or bytes written
+	private long nanos; //measured time
+	private long gcCount;
+	private long gcMillis;
+
+	/**
+	 * Creates a load test of the given initial blocks, with the given
+	 * records or with no records if it is null or empty.
+	 */
+	public RepLoad(List<RepBlk> templates,
+			List<? extends Map<String, ?>> records) {
+		if (templates.isEmpty())
+			throw new IllegalArgumentException(ERR_NO_TEMPLATES);
+		this.templates = new ArrayList<RepBlk>(templates);
+		this.records = (records != null ? records :
+				Collections.<Map<String, ?>>emptyList());
+	}
+
+	/**
+	 * Sets the number of threads, by default the number of processors.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(ERR_INVALID_THREADS);
+		this.threads = threads;
+	}
+
+	/**
+	 * Uses virtual threads instead of platform threads. Throws an
+	 * UnsupportedOperationException if the JVM is older than Java 21.
+	 */
+	public void setVirtual(boolean virtual) {
+		startVirtual = null;
+		if (! virtual)
+			return;
+		try {
+			startVirtual = Thread.class.getMethod(
+					"startVirtualThread", Runnable.class);
+		}
+		catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException(ERR_NO_VIRTUAL);
+		}
+	}
+
+	/**
+	 * Sets the sink of the pages: SINK_NULL (the default), SINK_STREAM or
+	 * SINK_FILE.
+	 */
+	public void setSink(int sink) {
+		if (sink < SINK_NULL || sink > SINK_FILE)
+			throw new IllegalArgumentException(ERR_INVALID_SINK);
+		this.sink = sink;
+	}
+
+	/**
+	 * Renders the pages during the given warmup time without measuring
+	 * them and then during the given time, measuring them, and throws the
+	 * first error found rendering the pages.
+	 */
+	public void run(long warmupMillis, long millis)
+			throws IOException, InterruptedException {
+		if (warmupMillis > 0)
+			measure(warmupMillis);
+		latencies.reset();
+		long[] gc = collections();
+		long start = System.nanoTime();
+		long[] totals = measure(millis);
+		nanos = System.nanoTime() - start;
+		pages = totals[0];
+		output = totals[1];
+		long[] gcEnd = collections();
+		gcCount = gcEnd[0] - gc[0];
+		gcMillis = gcEnd[1] - gc[1];
+	}
+
+	//Returns the number and milliseconds of the garbage collections:
+	private static long[] collections() {
+		long[] result = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			result[0] += Math.max(gc.getCollectionCount(), 0);
+			result[1] += Math.max(gc.getCollectionTime(), 0);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of pages rendered in the measured time.
+	 */
+	public long getPageCount() {
+		return pages;
+	}
+
+	/**
+	 * Returns the number of chars (with SINK_NULL) or bytes written in the
+	 * measured time.
+	 */
+	public long getOutputCount() {
+		return output;
+	}
+
+	/**
+	 * Returns the pages rendered per second in the measured time.
+	 */
+	public double getPagesPerSecond() {
+		return (nanos > 0 ? pages * 1e9 / nanos : 0);
+	}
+
+	/**
+	 * Returns the chars or bytes written per second in the measured time.
+	 */
+	public double getOutputPerSecond() {
+		return (nanos > 0 ? output * 1e9 / nanos : 0);
+	}
+
+	/**
+	 * Returns the latency in nanoseconds of the pages below which are the
+	 * given fraction (0.5, 0.99, 0.999...) of the pages measured.
+	 */
+	public long getLatency(double fraction) {
+		return latencies.getPercentile(fraction);
+	}
+
+	/**
+	 * Returns the maximum latency in nanoseconds of the pages measured.
+	 */
+	public long getMaxLatency() {
+		return latencies.getMax();
+	}
+
+	/**
+	 * Returns the number of garbage collections in the measured time.
+	 */
+	public long getGcCount() {
+		return gcCount;
+	}
+
+	/**
+	 * Returns the milliseconds spent in garbage collections in the
+	 * measured time.
+	 */
+	public long getGcMillis() {
+		return gcMillis;
+	}
+
+	/**
+	 * Returns a line with the results of the last run, with the output in
+	 * millions of chars per second with SINK_NULL and in MB/s otherwise.
+	 */
+	public String getReport() {
+		return String.format("%d threads%s, sink %s: %d pages" +
+				", %.0f pages/s, %.1f %s, latency us" +
+				" p50 %.1f p99 %.1f p99.9 %.1f max %.1f" +
+				", GC %d (%d ms)",
+				threads, (startVirtual != null ? " (virtual)" :
+				""), SINK_NAMES[sink], pages,
+				getPagesPerSecond(), getOutputPerSecond() / 1e6,
+				(sink == SINK_NULL ? "Mchars/s" : "MB/s"),
+				getLatency(0.5) / 1e3,
+				getLatency(0.99) / 1e3,
+				getLatency(0.999) / 1e3,
+				getMaxLatency() / 1e3,
+				gcCount, gcMillis);
+	}
+
+	/**
+	 * Runs a load test with the arguments described above and prints its
+	 * report.
+	 */
+	public static void main(String[] args) throws Exception {
+		int threads = 0, options = 0, sink = SINK_NULL;
+		boolean virtual = false;
+		long seconds = 10, warmup = 5;
+		String data = null;
+		List<RepBlk> templates = new ArrayList<RepBlk>();
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-");
+					i++) {
+				String arg = args[i];
+				if (arg.equals("-virtual"))
+					virtual = true;
+				else if (arg.equals("-minify"))
+					options |= RepBlk.OPT_MINIFY;
+				else if (arg.equals("-lazy"))
+					options |= RepBlk.OPT_LAZY;
+				else if (arg.equals("-parallel"))
+					options |= RepBlk.OPT_PARALLEL;
+				else if (arg.equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (arg.equals("-seconds"))
+					seconds = Long.parseLong(args[++i]);
+				else if (arg.equals("-warmup"))
+					warmup = Long.parseLong(args[++i]);
+				else if (arg.equals("-data"))
+					data = args[++i];
+				else if (arg.equals("-sink"))
+					sink = Arrays.asList(SINK_NAMES)
+						.indexOf(args[++i]);
+				else
+					sink = -1;
+				if (sink < 0)
+					break;
+			}
+		}
+		catch (RuntimeException e) { //missing or invalid number
+			sink = -1;
+		}
+		if (sink < 0 || i == args.length) {
+			System.err.println("Usage: java rep.RepLoad" +
+				" [-threads N] [-virtual] [-seconds S]" +
+				" [-warmup S] [-sink null|stream|file]" +
+				" [-minify] [-lazy] [-parallel] [-data FILE]" +
+				" TEMPLATE...");
+			System.exit(2);
+		}
+		for (; i < args.length; i++)
+			templates.add(new RepBlk(new FileReader(args[i]),
+					options));
+		List<Map<String, Object>> records =
+				new ArrayList<Map<String, Object>>();
+		if (data != null) {
+			InputStreamReader reader = new InputStreamReader(
+					new FileInputStream(data), UTF8);
+			RepData in = (data.endsWith(".csv") ?
+					RepData.csv(reader) :
+					RepData.jsonLines(reader));
+			try {
+				Map<String, Object> record;
+				while ((record = in.next()) != null)
+					records.add(record);
+			}
+			finally {
+				in.close();
+			}
+		}
+		RepLoad load = new RepLoad(templates, records);
+		if (threads > 0)
+			load.setThreads(threads);
+		load.setVirtual(virtual);
+		load.setSink(sink);
+		load.run(warmup * 1000, seconds * 1000);
+		System.out.println(load.getReport());
+	}
+
+	//Renders pages from all the threads during the given time, recording
+	//their latencies, and returns the number of pages and of the output:
+	private long[] measure(long millis)
+			throws IOException, InterruptedException {
+		final long deadline = System.nanoTime() + millis * 1000000;
+		final AtomicReference<Throwable> failure =
+				new AtomicReference<Throwable>();
+		final long[][] totals = new long[threads][2];
+		Thread[] started = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final long[] counts = totals[t];
+			Runnable worker = new Runnable() {
+				public void run() {
+					try {
+						render(deadline, counts);
+					}
+					catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			started[t] = start(worker);
+		}
+		for (Thread thread : started)
+			thread.join();
+		Throwable e = failure.get();
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e != null)
+			throw (Error) e;
+		long[] result = new long[2];
+		for (long[] counts : totals) {
+			result[0] += counts[0];
+			result[1] += counts[1];
+		}
+		return result;
+	}
+
+	private Thread start(Runnable worker) {
+		if (startVirtual == null) {
+			Thread thread = new Thread(worker);
+			thread.start();
+			return thread;
+		}
+		try {
+			return (Thread) startVirtual.invoke(null, worker);
+		}
+		catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException(ERR_NO_VIRTUAL);
+		}
+	}
+
+	//Renders the pages of one thread until the deadline, adding the
+	//number of pages and of the output to the given counts:
+	private void render(long deadline, long[] counts) throws IOException {
+		RepBlk[] pages = new RepBlk[templates.size()];
+		for (int i = 0; i < pages.length; i++)
+			pages[i] = templates.get(i).copy();
+		final long[] chars = new long[1];
+		Writer writer = null;
+		RepBuffer buffer = null;
+		ByteBuffer bytes = null;
+		File file = null;
+		FileChannel channel = null;
+		if (sink == SINK_NULL)
+			writer = new Writer() {
+				public void write(int c) {
+					chars[0]++;
+				}
+				public void write(char[] cbuf, int off,
+						int len) {
+					chars[0] += len;
+				}
+				public void write(String str, int off,
+						int len) {
+					chars[0] += len;
+				}
+				public void flush() {
+				}
+				public void close() {
+				}
+			};
+		else if (sink == SINK_STREAM) {
+			OutputStream stream = new OutputStream() {
+				public void write(int b) {
+					chars[0]++;
+				}
+				public void write(byte[] b, int off, int len) {
+					chars[0] += len;
+				}
+			};
+			writer = new OutputStreamWriter(
+					new BufferedOutputStream(stream), UTF8);
+		}
+		else {
+			writer = buffer = new RepBuffer();
+			file = File.createTempFile("repload", ".html");
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+		try {
+			long count = 0;
+			long time;
+			while ((time = System.nanoTime()) < deadline) {
+				int i = (int) (count % pages.length);
+				RepBlk page = pages[i];
+				page.reset();
+				if (records.isEmpty()) {
+					page.start(writer);
+					writeAll(page);
+					page.end();
+				}
+				else
+					RepData.write(page, writer, records.get(
+						(int) (count / pages.length %
+						records.size())));
+				if (buffer != null) {
+					bytes = buffer.toUtf8(bytes);
+					chars[0] += bytes.remaining();
+					channel.position(0);
+					while (bytes.hasRemaining())
+						channel.write(bytes);
+					buffer.reset();
+				}
+				else
+					writer.flush();
+				latencies.record(System.nanoTime() - time);
+				count++;
+			}
+			counts[0] = count;
+			counts[1] = chars[0];
+		}
+		finally {
+			if (channel != null) {
+				channel.close();
+				file.delete();
+			}
+		}
+	}
+
+	//Writes once all the blocks inside a started block:
+	private static void writeAll(RepBlk blk) throws IOException {
+		for (int i = 0; i < blk.getBlkNames().size(); i++) {
+			RepBlk child = blk.getBlk(i);
+			child.start();
+			writeAll(child);
+			blk.next();
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+//Minifies the texts of a template, which must be given in the same order
+//of the template because an element like pre, a tag or a quoted value of
+//an attribute can start in one text and end in a later one. Each run of
+//whitespace between the tags and in their contents is replaced by one line
+//break if it contains any, or by one space otherwise (or removed after
+//other line break), and the comments are removed, except conditional
+//comments and comments that are not closed in the same text. The tags and
+//the contents of the elements pre, textarea, script and style are not
+//modified. The method afterValue must be called between two texts
+//separated by the value of a variable or by the start or end of a block,
+//since the text written between them is not known.
+final class RepMinifier {
+
+	private static final String[] RAW_ELEMENTS =
+			{ "pre", "textarea", "script", "style" };
+
+	private String raw; //name of the raw element being read, or null
+	//'<' inside a tag, '!' inside a comment or declaration that is kept,
+	//the quote inside a quoted value of an attribute, or 0 outside:
+	private char tag;
+	private boolean newLine; //last text written ends with a line break
+
+	RepMinifier() {
+	}
+
+	//creates a minifier with the state of the given one:
+	RepMinifier(RepMinifier minifier) {
+		raw = minifier.raw;
+		tag = minifier.tag;
+		newLine = minifier.newLine;
+	}
+
+	void afterValue() {
+		newLine = false;
+	}
+
+	//Updates the state as if the text had been minified, but without
+	//knowing the end of the text in the pages:
+	void skip(String text) {
+		minify(text);
+		newLine = false;
+	}
+
+	String minify(String text) {
+		int len = text.length();
+		StringBuilder sb = new StringBuilder(len);
+		int i = 0;
+		while (i < len) {
+			if (raw != null && tag == 0) {
+				int end = indexOfEndTag(text, i, raw);
+				if (end < 0) {
+					sb.append(text, i, len);
+					newLine = false;
+					break;
+				}
+				sb.append(text, i, end);
+				raw = null;
+				i = end;
+				newLine = false;
+			}
+			char c = text.charAt(i);
+			if (tag != 0) { //copied without changes
+				if (c == '>' && (tag == '<' || tag == '!'))
+					tag = 0;
+				else if (tag == '<' && (c == '"' || c == '\''))
+					tag = c;
+				else if (c == tag && tag != '!')
+					tag = '<';
+				sb.append(c);
+				i++;
+				newLine = false;
+			}
+			else if (c == '<' && isTagAt(text, i)) {
+				int end = skipComment(text, i);
+				if (end > i) {
+					i = end;
+					continue;
+				}
+				raw = rawElementAt(text, i);
+				tag = (text.startsWith("<!", i) ? '!' : '<');
+				sb.append(c);
+				i++;
+				newLine = false;
+			}
+			else if (Character.isWhitespace(c)) {
+				int end = i;
+				boolean lineBreak = false;
+				while (end < len && Character.isWhitespace(
+						c = text.charAt(end))) {
+					if (c == '\n')
+						lineBreak = true;
+					end++;
+				}
+				if (newLine)
+					; //removed after other line break
+				else if (lineBreak) {
+					sb.append('\n');
+					newLine = true;
+				}
+				else
+					sb.append(' ');
+				i = end;
+			}
+			else {
+				sb.append(c);
+				i++;
+				newLine = false;
+			}
+		}
+		return sb.toString();
+	}
+
+	//Returns true if a tag, comment or declaration starts at the given
+	//position, and not a text like "a < b":
+	private static boolean isTagAt(String text, int i) {
+		if (i + 1 == text.length())
+			return false;
+		char c = text.charAt(i + 1);
+		return (Character.isLetter(c) || c == '/' || c == '!' ||
+				c == '?');
+	}
+
+	//Returns the position after the comment at the given position, or the
+	//same position if there is not a comment that can be removed:
+	private static int skipComment(String text, int i) {
+		if (! text.startsWith("<!--", i) || text.startsWith("<!--[", i))
+			return i;
+		int end = text.indexOf("-->", i + 4);
+		return (end < 0 ? i : end + 3);
+	}
+
+	//Returns the name of the raw element that starts at the given
+	//position, or null:
+	private static String rawElementAt(String text, int i) {
+		for (String name : RAW_ELEMENTS) {
+			int end = i + 1 + name.length();
+			if (text.regionMatches(true, i + 1, name, 0,
+					name.length()) && (end == text.length()
+					|| ! Character.isLetterOrDigit(
+					text.charAt(end))))
+				return name;
+		}
+		return null;
+	}
+
+	//Returns the position of the end tag of the element, or -1:
+	private static int indexOfEndTag(String text, int i, String name) {
+		for (int pos = text.indexOf("</", i); pos > -1;
+				pos = text.indexOf("</", pos + 2))
+			if (text.regionMatches(true, pos + 2, name, 0,
+					name.length()))
+				return pos;
+		return -1;
+	}
+
+}
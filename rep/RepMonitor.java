@@ -0,0 +1,155 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+/**
+ * RepMonitor receives the events of the parsing of templates and of the
+ * writing of pages, to measure them. All the methods do nothing by default.
+ *
+ * <p>A RepMonitor is set on an initial block with setMonitor, and the same
+ * RepMonitor can be used at the same time by blocks in different threads,
+ * so the implementations must be thread-safe. The methods are called in the
+ * thread writing the page, so they should be as fast as possible.</p>
+ *
+ * <p>The times are given in nanoseconds and the lengths in characters.</p>
+ *
+ * <p>The monitors of this package can keep an object for each page being
+ * written, with the package methods getMonitorData and setMonitorData of
+ * any block of the page.</p>
+ */
+public abstract class RepMonitor {
+
+	/**
+	 * Called after parsing a template with the given name and length,
+	 * by the classes that load templates, like RepRegistry.
+	 */
+	public void parsed(String name, RepBlk tpl, int length, long nanos) {
+	}
+
+	/**
+	 * Called when a page is started with the method start of the given
+	 * initial block, before writing anything.
+	 */
+	public void started(RepBlk page) {
+	}
+
+	/**
+	 * Called after writing a part of the text of a block, with the same
+	 * position that selects that part: 0 when the block is started, or
+	 * the index of the child block after which the text is written.
+	 */
+	public void written(RepBlk blk, int pos, long chars, long nanos) {
+	}
+
+	/**
+	 * Called after writing the last text of the page and flushing it,
+	 * with the length of the page and the time since it was started.
+	 */
+	public void finished(RepBlk page, long chars, long nanos) {
+	}
+
+	/**
+	 * Called when a page in progress is not going to be finished, because
+	 * the Writer failed on the given block, or the page was restarted or
+	 * ended without completing it, with the message of the error and the
+	 * exception thrown by the Writer, or null if it did not fail. The
+	 * operations not allowed do not abort the page, since the caller can
+	 * catch their exceptions and finish it.
+	 */
+	public void aborted(RepBlk blk, String msg, Throwable cause) {
+	}
+
+	/**
+	 * Returns a RepMonitor that gives all the events to both monitors,
+	 * first to the monitor a and then to b. Any of them can be null.
+	 */
+	public static RepMonitor join(RepMonitor a, RepMonitor b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		return new Joined(a, b);
+	}
+
+	//Gives the events to two monitors, with their own data in the page:
+	private static final class Joined extends RepMonitor {
+
+		private final RepMonitor a, b;
+
+		Joined(RepMonitor a, RepMonitor b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public void parsed(String name, RepBlk tpl, int length,
+				long nanos) {
+			a.parsed(name, tpl, length, nanos);
+			b.parsed(name, tpl, length, nanos);
+		}
+
+		public void started(RepBlk page) {
+			a.started(page);
+			Object dataA = page.getMonitorData();
+			page.setMonitorData(null);
+			b.started(page);
+			Object dataB = page.getMonitorData();
+			page.setMonitorData(new Object[] { dataA, dataB });
+		}
+
+		public void written(RepBlk blk, int pos, long chars,
+				long nanos) {
+			Object[] data = dataOf(blk);
+			blk.setMonitorData(data[0]);
+			a.written(blk, pos, chars, nanos);
+			data[0] = blk.getMonitorData();
+			blk.setMonitorData(data[1]);
+			b.written(blk, pos, chars, nanos);
+			data[1] = blk.getMonitorData();
+			blk.setMonitorData(data);
+		}
+
+		public void finished(RepBlk page, long chars, long nanos) {
+			Object[] data = dataOf(page);
+			page.setMonitorData(data[0]);
+			a.finished(page, chars, nanos);
+			page.setMonitorData(data[1]);
+			b.finished(page, chars, nanos);
+			page.setMonitorData(data);
+		}
+
+		public void aborted(RepBlk blk, String msg,
+				Throwable cause) {
+			Object[] data = dataOf(blk);
+			blk.setMonitorData(data[0]);
+			a.aborted(blk, msg, cause);
+			blk.setMonitorData(data[1]);
+			b.aborted(blk, msg, cause);
+			blk.setMonitorData(data);
+		}
+
+		//the data is missing if the page was started without monitor:
+		private static Object[] dataOf(RepBlk blk) {
+			Object data = blk.getMonitorData();
+			if (data instanceof Object[])
+				return (Object[]) data;
+			Object[] result = new Object[2];
+			blk.setMonitorData(result);
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.util.Arrays;
+import java.util.List;
+
+//Finds the position of the names of the blocks or variables of a block,
+//which never change, with a perfect hash of the hash codes of the names:
+//a multiplier is searched to have only one name in each entry of the
+//table, so a lookup is a multiplication, an access to the table and the
+//comparison with the name found. The hash code is kept by the String, so
+//it is only computed once for the names given as constants.
+final class RepNames {
+
+	private static final int MAX_TRIES = 256; //multipliers for each size
+	private static final int MAX_GROWTH = 3; //times the table is doubled
+
+	private final String[] names;
+	private final int[] table; //position of the name of each entry, or -1
+	private final int multiplier;
+	private final int shift; //to keep the bits of the entry
+	private final boolean exact; //false if a name is not in the table
+
+	RepNames(List<String> names) {
+		this.names = names.toArray(new String[names.size()]);
+		int bits = 1;
+		while ((1 << bits) < 2 * this.names.length)
+			bits++;
+		int[] hashes = new int[this.names.length];
+		for (int i = 0; i < hashes.length; i++)
+			hashes[i] = this.names[i].hashCode();
+		int m = 0x9e3779b9; //golden ratio, then pseudo-random
+		int[] t;
+		boolean ok = false;
+		for (int growth = 0; ; growth++, bits++) {
+			t = new int[1 << bits];
+			for (int i = 0; i < MAX_TRIES && ! ok; i++)
+				if (! (ok = fill(t, hashes, m, 32 - bits)))
+					m = (m * 0x2c1b3c6d + 0x297a2d39) | 1;
+			if (ok || growth == MAX_GROWTH)
+				break;
+		}
+		if (! ok) //the names with equal hash codes are searched
+			fill(t, hashes, m, 32 - bits);
+		table = t;
+		multiplier = m;
+		shift = 32 - bits;
+		exact = ok;
+	}
+
+	//Fills the table with the positions of the names, returning false if
+	//two names are in the same entry (leaving the first one):
+	private static boolean fill(int[] t, int[] hashes, int m, int shift) {
+		Arrays.fill(t, -1);
+		boolean ok = true;
+		for (int i = 0; i < hashes.length; i++) {
+			int entry = (hashes[i] * m) >>> shift;
+			if (t[entry] < 0)
+				t[entry] = i;
+			else
+				ok = false;
+		}
+		return ok;
+	}
+
+	//Returns the position of the name, or -1 if it is not found:
+	int indexOf(String name) {
+		if (name == null)
+			return -1;
+		int i = table[(name.hashCode() * multiplier) >>> shift];
+		if (i > -1 && names[i].equals(name))
+			return i;
+		if (! exact) //names with the same hash code
+			for (i = 0; i < names.length; i++)
+				if (names[i].equals(name))
+					return i;
+		return -1;
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RepPool keeps copies of the initial block of a template to reuse them
+ * in the pages, instead of creating a new copy with all its blocks for
+ * each page.
+ *
+ * <p>A copy is taken with acquire and returned with release when the page
+ * has been written or it has failed. The released copies are reset to the
+ * state of a new copy: the page not finalized is aborted, notifying its
+ * RepMonitor, and the variables get their initial values. At most the
+ * given number of copies are kept, and the rest are discarded.</p>
+ *
+ * <p>The copies acquired and never released are counted as leaked when
+ * they are removed by the garbage collector, and the copies that have been
+ * acquired for a long time can be counted with getBusyCount. A RepPool can
+ * be used by many threads, and each copy by one thread at a time.</p>
+ */
+public class RepPool {
+
+	private static final String
+	ERR_INVALID_SIZE = "The maximum number of copies must be positive",
+	ERR_NOT_ACQUIRED = "The block has not been acquired from this pool";
+
+	private final RepBlk template;
+	private final ArrayBlockingQueue<RepBlk> idle;
+	//entries of the acquired copies, that must be reachable to be
+	//found in the queue when their copies are removed:
+	private final Set<Lease> busy = Collections.newSetFromMap(
+			new ConcurrentHashMap<Lease, Boolean>());
+	private final ReferenceQueue<RepBlk> lost =
+			new ReferenceQueue<RepBlk>();
+	private final LongAdder created = new LongAdder();
+	private final LongAdder leaked = new LongAdder();
+
+	//entry of a copy acquired, which does not keep the copy:
+	private static final class Lease extends WeakReference<RepBlk> {
+		final long time; //when it was acquired
+
+		Lease(RepBlk blk, ReferenceQueue<RepBlk> queue) {
+			super(blk, queue);
+			time = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Creates a pool of copies of the given initial block, that keeps at
+	 * most the given number of copies not used.
+	 */
+	public RepPool(RepBlk template, int maxIdle) {
+		if (maxIdle < 1)
+			throw new IllegalArgumentException(ERR_INVALID_SIZE);
+		this.template = template;
+		idle = new ArrayBlockingQueue<RepBlk>(maxIdle);
+	}
+
+	/**
+	 * Returns a copy of the initial block not used, like a new copy,
+	 * creating it if there is none.
+	 */
+	public RepBlk acquire() {
+		expungeLost();
+		RepBlk blk = idle.poll();
+		if (blk == null) {
+			blk = template.copy();
+			created.increment();
+		}
+		Lease lease = new Lease(blk, lost);
+		busy.add(lease);
+		blk.setLease(lease);
+		return blk;
+	}
+
+	/**
+	 * Returns to the pool a copy acquired from it, aborting its page if it
+	 * has not been finalized. The copy must not be used after this call.
+	 */
+	public void release(RepBlk blk) {
+		Object lease = blk.getLease();
+		if (! (lease instanceof Lease) || ! busy.contains(lease))
+			throw new IllegalArgumentException(ERR_NOT_ACQUIRED);
+		blk.reset(); //only allowed on the initial block
+		busy.remove(lease);
+		((Lease) lease).clear();
+		blk.setLease(null);
+		idle.offer(blk); //discarded if the pool is full
+	}
+
+	/**
+	 * Returns the number of copies kept that are not used.
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Returns the number of copies acquired and not released yet.
+	 */
+	public int getBusyCount() {
+		expungeLost();
+		return busy.size();
+	}
+
+	/**
+	 * Returns the number of copies acquired at least the given number of
+	 * milliseconds ago and not released yet, which may have been leaked.
+	 */
+	public int getBusyCount(long minMillis) {
+		expungeLost();
+		long now = System.nanoTime();
+		int count = 0;
+		for (Lease lease : busy)
+			if (now - lease.time >= minMillis * 1000000)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Returns the number of copies created by the pool.
+	 */
+	public long getCreatedCount() {
+		return created.sum();
+	}
+
+	/**
+	 * Returns the number of copies acquired that have been removed by the
+	 * garbage collector without being released.
+	 */
+	public long getLeakCount() {
+		expungeLost();
+		return leaked.sum();
+	}
+
+	//Counts the leases of the copies removed without being released:
+	private void expungeLost() {
+		Object lease;
+		while ((lease = lost.poll()) != null)
+			if (busy.remove(lease))
+				leaked.increment();
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RepProfiler is a RepMonitor that measures the writing of the pages by
+ * block, to find which blocks of a template make the pages slow.
+ *
+ * <p>For each path of block (like <code>/list/item/tags</code>, or
+ * <code>/</code> for the initial block, with the characters / and % of the
+ * names replaced by %2F and %25) it adds up for all the pages:
+ * the repetitions of the block, the characters written by the block,
+ * the wall time from each start of the block until its last text is
+ * written (including its children and the time of the program between
+ * the calls), the self time (the wall time without the time of its
+ * children) and the time spent inside the Writer by the block.</p>
+ *
+ * <p>The data can be written as a table with dump, or with dumpCollapsed
+ * in the collapsed stack format used by the flame graph tools, with a line
+ * for each block with its frames separated by semicolons and its self time
+ * in microseconds, like <code>page;list;item;tags 1234</code>.</p>
+ *
+ * <p>Profiling adds some calls to System.nanoTime for each text written,
+ * so it should be enabled only when needed, setting the profiler as the
+ * monitor of the initial block, or joined with other monitors.</p>
+ */
+public class RepProfiler extends RepMonitor {
+
+	private final String name;
+	private final ConcurrentHashMap<String, Entry> entries =
+			new ConcurrentHashMap<String, Entry>();
+
+	//data of a block path added up for all the pages:
+	private static final class Entry {
+		final LongAdder reps = new LongAdder();
+		final LongAdder chars = new LongAdder();
+		final LongAdder wall = new LongAdder();
+		final LongAdder self = new LongAdder();
+		final LongAdder sink = new LongAdder();
+	}
+
+	//data of the blocks being written in a page, by their depth:
+	private static final class Page {
+		long[] starts = new long[8];
+		long[] children = new long[8]; //wall time of the children
+	}
+
+	/**
+	 * Creates the profiler, with the name used as the first frame of the
+	 * stacks in the collapsed format.
+	 */
+	public RepProfiler(String name) {
+		this.name = name;
+	}
+
+	public void started(RepBlk page) {
+		page.setMonitorData(new Page());
+	}
+
+	public void written(RepBlk blk, int pos, long chars, long nanos) {
+		long now = System.nanoTime();
+		Object data = blk.getMonitorData();
+		if (! (data instanceof Page))
+			return; //started without profiler
+		Page page = (Page) data;
+		Entry entry = getEntry(blk.getPath());
+		entry.chars.add(chars);
+		entry.sink.add(nanos);
+		int depth = blk.getDepth();
+		if (depth >= page.starts.length) {
+			page.starts = grow(page.starts, depth);
+			page.children = grow(page.children, depth);
+		}
+		if (pos == 0) {
+			entry.reps.increment();
+			page.starts[depth] = now - nanos;
+			page.children[depth] = 0;
+		}
+		if (pos == blk.getBlkNames().size()) { //last text of block
+			long wall = now - page.starts[depth];
+			entry.wall.add(wall);
+			entry.self.add(wall - page.children[depth]);
+			if (depth > 0)
+				page.children[depth - 1] += wall;
+		}
+	}
+
+	/**
+	 * Writes a table with the data of each block path, sorted by path,
+	 * with the times in microseconds.
+	 */
+	public void dump(Appendable out) throws IOException {
+		String format = "%-40s %10s %12s %12s %12s %12s%n";
+		out.append(String.format(format, "block", "reps", "chars",
+				"wall_us", "self_us", "sink_us"));
+		for (String path : sortedPaths()) {
+			Entry e = entries.get(path);
+			out.append(String.format(format, path, e.reps.sum(),
+				e.chars.sum(), e.wall.sum() / 1000,
+				e.self.sum() / 1000, e.sink.sum() / 1000));
+		}
+	}
+
+	/**
+	 * Writes the self time in microseconds of each block path in the
+	 * collapsed stack format of the flame graph tools.
+	 */
+	public void dumpCollapsed(Appendable out) throws IOException {
+		for (String path : sortedPaths()) {
+			Entry e = entries.get(path);
+			StringBuilder line = new StringBuilder(frame(name));
+			for (String blk : RepBlk.splitPath(path))
+				line.append(';').append(frame(blk));
+			line.append(' ').append(e.self.sum() / 1000);
+			out.append(line).append('\n');
+		}
+	}
+
+	/**
+	 * Removes all the data collected.
+	 */
+	public void reset() {
+		entries.clear();
+	}
+
+	private Entry getEntry(String path) {
+		Entry entry = entries.get(path);
+		if (entry == null) {
+			Entry prev = entries.putIfAbsent(path,
+					entry = new Entry());
+			if (prev != null)
+				entry = prev;
+		}
+		return entry;
+	}
+
+	private ArrayList<String> sortedPaths() {
+		ArrayList<String> list = new ArrayList<String>(
+				entries.keySet());
+		Collections.sort(list);
+		return list;
+	}
+
+	//the separators of the collapsed format are not allowed in frames:
+	private static String frame(String str) {
+		return str.replace(';', '_').replace(' ', '_');
+	}
+
+	private static long[] grow(long[] array, int index) {
+		int length = Math.max(index + 1, array.length * 2);
+		long[] result = new long[length];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * RepRecording keeps the operations done on a page started with
+ * RepBlk.startRecording, which are checked as they are done like when the
+ * page is written, to write the page later with replay, for example in
+ * other thread, or to keep it and write it again.
+ *
+ * <p>The recording only keeps which parts of each block were written and
+ * the values of their variables, in a compact array of bytes that can be
+ * stored with toByteArray and loaded with RepRecording(byte[]). It can be
+ * replayed with any initial block of the same template, which is checked
+ * with the digest of the template. A RepRecording is never modified, so it
+ * can be replayed by many threads at the same time, each one with its own
+ * copy of the template.</p>
+ */
+public class RepRecording {
+
+	private static final String
+	ERR_OTHER_TEMPLATE = "The recording is for other template",
+	ERR_INVALID_DATA = "Invalid recording data";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//Format: the digest of the template (8 bytes) and, for each part of
+	//a block written, the number of the block, followed by its path the
+	//first time, the position of the part and the values written. The
+	//numbers are written with 7 bits per byte, the lowest bits first.
+	private final byte[] data;
+
+	/**
+	 * Loads a recording from the bytes returned by toByteArray.
+	 */
+	public RepRecording(byte[] data) {
+		if (data.length < 8)
+			throw new IllegalArgumentException(ERR_INVALID_DATA);
+		this.data = data.clone();
+	}
+
+	private RepRecording(byte[] data, int length) {
+		this.data = Arrays.copyOf(data, length);
+	}
+
+	/**
+	 * Returns the bytes of the recording, to store it.
+	 */
+	public byte[] toByteArray() {
+		return data.clone();
+	}
+
+	/**
+	 * Returns the number of bytes of the recording.
+	 */
+	public int size() {
+		return data.length;
+	}
+
+	/**
+	 * Writes the page recorded, using the given initial block of the same
+	 * template, which must not be in use, and flushes the writer. The
+	 * blocks up to the flush depth of the initial block also flush it.
+	 */
+	public void replay(RepBlk page, Writer writer) throws IOException {
+		if (page.getTemplateDigest() != readLong(0))
+			throw new IllegalArgumentException(
+					ERR_OTHER_TEMPLATE);
+		int flushDepth = page.getFlushDepth();
+		RepDeflateWriter deflater = (writer instanceof
+				RepDeflateWriter ? (RepDeflateWriter) writer :
+				null);
+		ArrayList<RepBlk> blks = new ArrayList<RepBlk>();
+		int[] next = { 8 }; //position in data
+		try {
+			while (next[0] < data.length) {
+				int id = readInt(next);
+				if (id == blks.size())
+					blks.add(findBlk(page,
+							readString(next)));
+				RepBlk blk = blks.get(id);
+				String[] texts = blk.getTexts();
+				int[] slots = blk.getSlots();
+				int[] ranges = blk.getRanges();
+				RepChunk[] chunks = (deflater != null ?
+						blk.getChunks() : null);
+				int pos = readInt(next);
+				int limit = ranges[pos];
+				for (int i = (pos > 0 ? ranges[pos - 1] : 0);
+						i < limit; i++) {
+					if (chunks != null && chunks[i] != null)
+						deflater.writeChunk(chunks[i]);
+					else
+						writer.write(texts[i]);
+					if (slots[i] > -1)
+						writer.write(readString(next));
+				}
+				if (blk.getDepth() <= flushDepth)
+					writer.flush();
+			}
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException(ERR_INVALID_DATA);
+		}
+		writer.flush();
+	}
+
+	//Returns a 64-bit FNV-1a hash of the recording, which identifies the
+	//template and the page written with it:
+	long fingerprint() {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : data)
+			h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		return h;
+	}
+
+	//Returns the block with the given path inside the initial block:
+	private static RepBlk findBlk(RepBlk page, String path) {
+		RepBlk blk = page;
+		for (String name : RepBlk.splitPath(path))
+			if ((blk = blk.getBlk(name)) == null)
+				throw new IllegalArgumentException(
+						ERR_INVALID_DATA);
+		return blk;
+	}
+
+	private long readLong(int pos) {
+		long n = 0;
+		for (int i = 7; i >= 0; i--)
+			n = (n << 8) | (data[pos + i] & 0xff);
+		return n;
+	}
+
+	private int readInt(int[] next) {
+		int n = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = data[next[0]++];
+			n |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return n;
+			if (shift >= 28)
+				throw new IllegalArgumentException(
+						ERR_INVALID_DATA);
+		}
+	}
+
+	private String readString(int[] next) {
+		int length = readInt(next);
+		if (length > data.length - next[0])
+			throw new IllegalArgumentException(ERR_INVALID_DATA);
+		String str = new String(data, next[0], length, UTF8);
+		next[0] += length;
+		return str;
+	}
+
+	//Writes the recording of a page, called by the blocks of the page:
+	static final class Recorder {
+		private byte[] buf = new byte[256];
+		private int count;
+		private final IdentityHashMap<RepBlk, Integer> ids =
+				new IdentityHashMap<RepBlk, Integer>();
+
+		Recorder(long tplDigest) {
+			for (int i = 0; i < 8; i++)
+				buf[count++] = (byte) (tplDigest >>> (8 * i));
+		}
+
+		//records the part of the block at the given position, with
+		//the values written after its texts:
+		void record(RepBlk blk, int pos, String[] values) {
+			Integer id = ids.get(blk);
+			if (id == null) {
+				id = Integer.valueOf(ids.size());
+				ids.put(blk, id);
+				writeInt(id.intValue());
+				writeString(blk.getPath());
+			}
+			else
+				writeInt(id.intValue());
+			writeInt(pos);
+			int[] slots = blk.getSlots();
+			int[] ranges = blk.getRanges();
+			int limit = ranges[pos];
+			for (int i = (pos > 0 ? ranges[pos - 1] : 0);
+					i < limit; i++)
+				if (slots[i] > -1)
+					writeString(values[slots[i]]);
+		}
+
+		RepRecording finish() {
+			return new RepRecording(buf, count);
+		}
+
+		private void writeInt(int n) {
+			ensureCapacity(5);
+			while ((n & ~0x7f) != 0) {
+				buf[count++] = (byte) ((n & 0x7f) | 0x80);
+				n >>>= 7;
+			}
+			buf[count++] = (byte) n;
+		}
+
+		private void writeString(String str) {
+			byte[] bytes = str.getBytes(UTF8);
+			writeInt(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buf, count, bytes.length);
+			count += bytes.length;
+		}
+
+		private void ensureCapacity(int n) {
+			if (count + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(count + n,
+						buf.length * 2));
+		}
+	}
+
+}
@@ -0,0 +1,534 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+
+/**
+ * RepRegistry keeps the parsed Rep templates of a directory and reloads them
+ * when their files are modified.
+ *
+ * <p>The templates are identified by their path relative to the directory,
+ * for example <code>list/page.tpl.html</code>, and the method get returns
+ * a new initial block for the current version of the template each time,
+ * so every page must be generated with its own block. When a template is
+ * reloaded the new version replaces the old one atomically, and the pages
+ * that were being generated continue using the old version.</p>
+ *
+ * <p>If a modified template is not valid, the previous version is still
+ * used, and the error message is given to the Listener and returned by
+ * the method getError until the template is loaded successfully.</p>
+ *
+ * <p>The method watch starts a background thread that uses a WatchService
+ * to reload the templates, and to remove them when their files are
+ * deleted, which is stopped by the method close. If the WatchService loses
+ * events, all the templates are loaded again. The loads of the same
+ * template are made one at a time, so the version kept is always the last
+ * one read.</p>
+ */
+public class RepRegistry implements Closeable {
+
+	/**
+	 * Receives the results of loading templates. The methods are called
+	 * from the thread that loads the template.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called after loading successfully the template.
+		 */
+		void loaded(String name);
+
+		/**
+		 * Called when the template cannot be loaded, with the message
+		 * of the error, while the previous version is still used.
+		 */
+		void failed(String name, String msg);
+	}
+
+	private static final String SOURCE_SUFFIX = ".tpl.html";
+
+	private static final WatchEvent.Kind<Object> OVERFLOW =
+			StandardWatchEventKinds.OVERFLOW;
+	private static final WatchEvent.Kind<Path> ENTRY_DELETE =
+			StandardWatchEventKinds.ENTRY_DELETE;
+
+	private final File dir;
+	private final ConcurrentHashMap<String, RepBlk> tpls =
+			new ConcurrentHashMap<String, RepBlk>();
+	private final ConcurrentHashMap<String, String> errors =
+			new ConcurrentHashMap<String, String>();
+	//locks to load each template in one thread at a time:
+	private final ConcurrentHashMap<String, Object> locks =
+			new ConcurrentHashMap<String, Object>();
+	private final ConcurrentHashMap<String, RepStats> stats =
+			new ConcurrentHashMap<String, RepStats>();
+	private volatile RepStats allStats;
+	private volatile String statsError; //registering them in JMX
+	private final ConcurrentHashMap<String, RepJfr> events =
+			new ConcurrentHashMap<String, RepJfr>();
+	private volatile long blockThreshold = -2; //-2 if events disabled
+	private volatile int precompressLength = -1; //-1 if not enabled
+	private volatile int precompressLevel;
+	private volatile RepInterner interner; //null if not enabled
+	private volatile Listener listener;
+	private WatchService watcher;
+	private Thread thread;
+
+	/**
+	 * Creates the registry for the given directory and loads all the
+	 * templates inside it (the files ending with .tpl.html), also in
+	 * its subdirectories. The templates not valid are not available
+	 * and their errors are returned by getError.
+	 */
+	public RepRegistry(File dir) {
+		this.dir = dir;
+		loadAll(dir, "");
+	}
+
+	/**
+	 * Sets the object that will receive the results of the next loads.
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns a new initial block for the current version of the template
+	 * with the given name, or null if it has never been loaded or its file
+	 * has been deleted while watching the directory.
+	 */
+	public RepBlk get(String name) {
+		RepBlk tpl = tpls.get(name);
+		return (tpl != null ? tpl.copy() : null);
+	}
+
+	/**
+	 * Returns a new RepBuffer to write a page of the template with the
+	 * given name, with the estimated size of the pages of the template
+	 * given by its RepStats, if enabled, or the length of its texts.
+	 */
+	public RepBuffer newBuffer(String name) {
+		RepStats st = (allStats != null ? stats.get(name) : null);
+		int size = (st != null ? st.getSizeEstimate() : 0);
+		if (size == 0) {
+			RepBlk tpl = tpls.get(name);
+			if (tpl != null)
+				size = tpl.getTextLength();
+		}
+		return new RepBuffer(size);
+	}
+
+	/**
+	 * Returns the message of the error of the last load of the template
+	 * with the given name, or null if the last load was successful.
+	 */
+	public String getError(String name) {
+		return errors.get(name);
+	}
+
+	/**
+	 * Returns the names of the templates loaded successfully at least once,
+	 * except those whose files have been deleted while watching them.
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(tpls.keySet());
+	}
+
+	/**
+	 * Loads again the template with the given name, replacing the current
+	 * version if it is valid. Returns true if it was loaded successfully.
+	 */
+	public boolean load(String name) {
+		synchronized (lockOf(name)) {
+			return loadNow(name);
+		}
+	}
+
+	private Object lockOf(String name) {
+		Object lock = locks.get(name);
+		if (lock == null) {
+			lock = new Object();
+			Object prev = locks.putIfAbsent(name, lock);
+			if (prev != null)
+				lock = prev;
+		}
+		return lock;
+	}
+
+	//Loads the template holding its lock:
+	private boolean loadNow(String name) {
+		RepBlk tpl;
+		try {
+			String text = RepBlk.readAll(new FileReader(
+					new File(dir, name)));
+			long time = System.nanoTime();
+			tpl = new RepBlk(text, 0, interner);
+			time = System.nanoTime() - time;
+			int minLength = precompressLength;
+			if (minLength > -1)
+				tpl.precompress(minLength, precompressLevel);
+			RepMonitor monitor = RepMonitor.join(getStats(name),
+					getEvents(name));
+			if (monitor != null) {
+				tpl.setMonitor(monitor);
+				monitor.parsed(name, tpl, text.length(), time);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			return failed(name, e.getMessage());
+		}
+		catch (IOException e) {
+			return failed(name, e.toString());
+		}
+		tpls.put(name, tpl);
+		errors.remove(name);
+		Listener l = listener;
+		if (l != null)
+			l.loaded(name);
+		return true;
+	}
+
+	/**
+	 * Creates and registers in JMX a RepStats for each template, and one
+	 * for all the templates, that will measure the next templates loaded
+	 * and the pages written with the blocks returned by get.
+	 * The templates already loaded are loaded again to measure them.
+	 */
+	public synchronized void enableStats() throws JMException {
+		if (allStats != null)
+			return;
+		RepStats all = new RepStats("all", null);
+		all.register();
+		allStats = all;
+		for (String name : tpls.keySet())
+			load(name);
+	}
+
+	/**
+	 * Returns the RepStats of the template with the given name, or null
+	 * if enableStats has not been called.
+	 */
+	public RepStats getStats(String name) {
+		RepStats all = allStats;
+		if (all == null)
+			return null;
+		RepStats st = stats.get(name);
+		if (st == null) {
+			st = new RepStats(name, all);
+			RepStats prev = stats.putIfAbsent(name, st);
+			if (prev != null)
+				return prev;
+			try {
+				st.register();
+			}
+			catch (JMException e) { //only available from here
+				statsError = name + ": " + e;
+			}
+		}
+		return st;
+	}
+
+	/**
+	 * Returns the message of the last error registering or unregistering
+	 * in JMX the RepStats of a template, which is measured anyway, or null
+	 * if there was none.
+	 */
+	public String getStatsError() {
+		return statsError;
+	}
+
+	/**
+	 * Returns the RepStats with the data of all the templates, or null
+	 * if enableStats has not been called.
+	 */
+	public RepStats getAllStats() {
+		return allStats;
+	}
+
+	/**
+	 * Makes the templates emit Java Flight Recorder events with RepJfr,
+	 * including the events of the blocks that last at least the given
+	 * nanoseconds, or none if it is negative.
+	 * The templates already loaded are loaded again to emit the events.
+	 */
+	public synchronized void enableEvents(long blockThreshold) {
+		if (this.blockThreshold != -2)
+			return;
+		this.blockThreshold = (blockThreshold < 0 ? -1 :
+				blockThreshold);
+		for (String name : tpls.keySet())
+			load(name);
+	}
+
+	/**
+	 * Makes the templates compress their texts with at least the given
+	 * length using the given level, with RepBlk.precompress, to write
+	 * them faster with RepDeflateWriter.
+	 * The templates already loaded are loaded again to compress them.
+	 */
+	public synchronized void enablePrecompression(int minLength,
+			int level) {
+		if (precompressLength != -1)
+			return;
+		precompressLevel = level;
+		precompressLength = Math.max(minLength, 0);
+		for (String name : tpls.keySet())
+			load(name);
+	}
+
+	/**
+	 * Makes the templates share a single copy of their equal texts, and
+	 * also of the parts of their long texts that are equal, like the
+	 * headers and footers included in many templates, to use less memory.
+	 * The templates already loaded are loaded again to share their texts.
+	 */
+	public synchronized void enableTextSharing() {
+		if (interner != null)
+			return;
+		interner = new RepInterner();
+		for (String name : tpls.keySet())
+			load(name);
+	}
+
+	/**
+	 * Returns the number of chars of the texts of all the templates.
+	 */
+	public long getTextChars() {
+		return countChars(false);
+	}
+
+	/**
+	 * Returns the number of chars of the texts of all the templates that
+	 * are not stored because they are shared with other texts.
+	 */
+	public long getSavedTextChars() {
+		return countChars(false) - countChars(true);
+	}
+
+	//counts the chars of the texts, or only of the different instances:
+	private long countChars(boolean distinct) {
+		IdentityHashMap<String, String> seen = (distinct ?
+				new IdentityHashMap<String, String>() : null);
+		long chars = 0;
+		for (RepBlk tpl : tpls.values())
+			chars += countChars(tpl, seen);
+		return chars;
+	}
+
+	private static long countChars(RepBlk blk,
+			IdentityHashMap<String, String> seen) {
+		long chars = 0;
+		for (String text : blk.getTexts())
+			if (seen == null || seen.put(text, text) == null)
+				chars += text.length();
+		for (int i = 0; i < blk.getBlkNames().size(); i++)
+			chars += countChars(blk.getBlk(i), seen);
+		return chars;
+	}
+
+	private RepJfr getEvents(String name) {
+		long threshold = blockThreshold;
+		if (threshold == -2)
+			return null;
+		RepJfr jfr = events.get(name);
+		if (jfr == null) {
+			jfr = new RepJfr(name, threshold);
+			RepJfr prev = events.putIfAbsent(name, jfr);
+			if (prev != null)
+				jfr = prev;
+		}
+		return jfr;
+	}
+
+	/**
+	 * Starts a background thread that reloads the templates when their
+	 * files are created or modified, and removes them when their files
+	 * are deleted. Does nothing if already started.
+	 */
+	public synchronized void watch() throws IOException {
+		if (watcher != null)
+			return;
+		final WatchService ws = FileSystems.getDefault()
+				.newWatchService();
+		final HashMap<WatchKey, String> keys =
+				new HashMap<WatchKey, String>();
+		register(ws, dir, "", keys);
+		watcher = ws;
+		thread = new Thread("RepRegistry " + dir) {
+			public void run() {
+				watchLoop(ws, keys);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the thread started by watch, if any, and unregisters the
+	 * RepStats from JMX.
+	 * The registry can still be used to get the loaded templates.
+	 */
+	public synchronized void close() throws IOException {
+		for (RepStats st : stats.values())
+			unregister(st);
+		if (allStats != null)
+			unregister(allStats);
+		if (watcher == null)
+			return;
+		watcher.close();
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		watcher = null;
+		thread = null;
+	}
+
+	private void unregister(RepStats st) {
+		try {
+			st.unregister();
+		}
+		catch (JMException e) {
+			statsError = st.getName() + ": " + e;
+		}
+	}
+
+	private boolean failed(String name, String msg) {
+		errors.put(name, msg);
+		Listener l = listener;
+		if (l != null)
+			l.failed(name, msg);
+		return false;
+	}
+
+	private void loadAll(File subdir, String prefix) {
+		File[] files = subdir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory())
+				loadAll(file, prefix + file.getName() + "/");
+			else if (file.getName().endsWith(SOURCE_SUFFIX))
+				load(prefix + file.getName());
+		}
+	}
+
+	//Removes the templates with the given name, or inside the directory
+	//with the given prefix, whose files do not exist anymore:
+	private void removeDeleted(String name, String prefix) {
+		HashSet<String> names = new HashSet<String>(tpls.keySet());
+		names.addAll(errors.keySet());
+		for (String key : names) {
+			if (! key.equals(name) && ! key.startsWith(prefix))
+				continue;
+			synchronized (lockOf(key)) {
+				if (new File(dir, key).isFile())
+					continue; //created again
+				tpls.remove(key);
+				errors.remove(key);
+			}
+		}
+	}
+
+	private static void register(WatchService ws, File subdir,
+			String prefix, HashMap<WatchKey, String> keys)
+			throws IOException {
+		keys.put(subdir.toPath().register(ws,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				ENTRY_DELETE), prefix);
+		File[] files = subdir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			if (file.isDirectory())
+				register(ws, file, prefix +
+						file.getName() + "/", keys);
+	}
+
+	//registers and loads a new directory found while watching:
+	private void addDir(WatchService ws, File subdir, String prefix,
+			HashMap<WatchKey, String> keys) {
+		try {
+			register(ws, subdir, prefix, keys);
+		}
+		catch (IOException e) { } //only loaded, not watched
+		catch (ClosedWatchServiceException e) { } //closing
+		loadAll(subdir, prefix);
+	}
+
+	//Waits for changes in the files until the WatchService is closed:
+	private void watchLoop(WatchService ws,
+			HashMap<WatchKey, String> keys) {
+		while (true) {
+			WatchKey key;
+			try {
+				key = ws.take();
+			}
+			catch (ClosedWatchServiceException e) {
+				return;
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			String prefix = keys.get(key);
+			boolean overflow = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW)
+					overflow = true;
+				if (prefix == null || ! (event.context()
+						instanceof Path))
+					continue; //overflow or unknown key
+				String name = prefix + event.context();
+				File file = new File(dir, name);
+				if (event.kind() == ENTRY_DELETE)
+					removeDeleted(name, name + "/");
+				else if (file.isDirectory())
+					addDir(ws, file, name + "/", keys);
+				else if (name.endsWith(SOURCE_SUFFIX))
+					load(name);
+			}
+			if (! key.reset())
+				keys.remove(key);
+			if (overflow) { //events lost, all files loaded again
+				addDir(ws, dir, "", keys);
+				removeDeleted(null, "");
+			}
+		}
+	}
+
+}
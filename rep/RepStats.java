@@ -0,0 +1,284 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * RepStats is a RepMonitor that counts the templates parsed and the pages
+ * written, and can be registered as an MXBean to read them with JMX.
+ *
+ * <p>The counters are striped (LongAdder) and the latencies are recorded in
+ * a lock-free histogram, so many threads can update them at the same time
+ * without contention. A RepStats can have a parent RepStats that receives
+ * also all the measures, to aggregate the data of many templates.</p>
+ *
+ * <p>The lengths of the completed pages are also recorded in a histogram
+ * and getSizeEstimate returns a length that most of the recent pages do not
+ * exceed, used by RepRegistry.newBuffer to create buffers that rarely need
+ * to grow. Its counts are halved every SIZE_HALF_LIFE pages, so it adapts
+ * to the sizes of the new pages after a few times that number of pages.
+ * The chars written by each block are only summed to report them.</p>
+ *
+ * <p>RepRegistry creates a RepStats for each template when enableStats
+ * is called, registered with the names
+ * <code>rep:type=RepStats,name=TEMPLATE</code>, and another one with
+ * the name <code>rep:type=RepStats,name=all</code> for all of them.</p>
+ */
+public class RepStats extends RepMonitor implements RepStatsMXBean {
+
+	private static final String DOMAIN = "rep";
+
+	/**
+	 * Number of completed pages after which the lengths of the previous
+	 * pages weigh half in getSizeEstimate.
+	 */
+	public static final int SIZE_HALF_LIFE = 128;
+
+	private final String name;
+	private final RepStats parent;
+	private final LongAdder parseCount = new LongAdder();
+	private final LongAdder parseNanos = new LongAdder();
+	private final LongAdder started = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder aborted = new LongAdder();
+	private final LongAdder chars = new LongAdder();
+	private final RepHistogram latencies = new RepHistogram();
+	private final RepHistogram sizes = new RepHistogram();
+	private final RepHistogram recentSizes = new RepHistogram(); //decaying
+	private final AtomicLong recentCount = new AtomicLong();
+	private final ConcurrentHashMap<String, LongAdder> abortsByError =
+			new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<String, LongAdder> repetitions =
+			new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<String, LongAdder> blockChars =
+			new ConcurrentHashMap<String, LongAdder>();
+	private ObjectName objectName;
+
+	/**
+	 * Creates the stats of the template with the given name, adding also
+	 * all the measures to the given parent, if it is not null.
+	 */
+	public RepStats(String name, RepStats parent) {
+		this.name = name;
+		this.parent = parent;
+	}
+
+	/**
+	 * Registers this object in the platform MBeanServer with the name
+	 * rep:type=RepStats,name=NAME.
+	 */
+	public synchronized void register() throws JMException {
+		if (objectName != null)
+			return;
+		ObjectName on = new ObjectName(DOMAIN + ":type=RepStats,name=" +
+				ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(on))
+			server.unregisterMBean(on);
+		server.registerMBean(this, on);
+		objectName = on;
+	}
+
+	/**
+	 * Removes this object from the platform MBeanServer, if registered.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName == null)
+			return;
+		ManagementFactory.getPlatformMBeanServer()
+				.unregisterMBean(objectName);
+		objectName = null;
+	}
+
+	public void parsed(String name, RepBlk tpl, int length, long nanos) {
+		parseCount.increment();
+		parseNanos.add(nanos);
+		if (parent != null)
+			parent.parsed(name, tpl, length, nanos);
+	}
+
+	public void started(RepBlk page) {
+		started.increment();
+		if (parent != null)
+			parent.started(page);
+	}
+
+	public void written(RepBlk blk, int pos, long chars, long nanos) {
+		this.chars.add(chars);
+		if (blk.getBlkName() != null) {
+			if (pos == 0) //block repeated
+				count(repetitions, blk.getPath(), 1);
+			count(blockChars, blk.getPath(), chars);
+		}
+		if (parent != null) //repetitions only counted by template
+			parent.chars.add(chars);
+	}
+
+	public void finished(RepBlk page, long chars, long nanos) {
+		completed.increment();
+		latencies.record(nanos);
+		sizes.record(chars);
+		recentSizes.record(chars);
+		if (recentCount.incrementAndGet() % SIZE_HALF_LIFE == 0)
+			recentSizes.decay();
+		if (parent != null)
+			parent.finished(page, chars, nanos);
+	}
+
+	public void aborted(RepBlk blk, String msg, Throwable cause) {
+		aborted.increment();
+		//not by the message of the exception, to have few keys:
+		count(abortsByError, (cause != null ?
+				cause.getClass().getName() : msg), 1);
+		if (parent != null)
+			parent.aborted(blk, msg, cause);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getParseCount() {
+		return parseCount.sum();
+	}
+
+	public long getParseTimeMicros() {
+		return parseNanos.sum() / 1000;
+	}
+
+	public long getRendersStarted() {
+		return started.sum();
+	}
+
+	public long getRendersCompleted() {
+		return completed.sum();
+	}
+
+	public long getRendersAborted() {
+		return aborted.sum();
+	}
+
+	public Map<String, Long> getAbortsByError() {
+		return snapshot(abortsByError);
+	}
+
+	public long getCharsWritten() {
+		return chars.sum();
+	}
+
+	public long getRenderLatencyP50Micros() {
+		return latencies.getPercentile(0.5) / 1000;
+	}
+
+	public long getRenderLatencyP95Micros() {
+		return latencies.getPercentile(0.95) / 1000;
+	}
+
+	public long getRenderLatencyP99Micros() {
+		return latencies.getPercentile(0.99) / 1000;
+	}
+
+	public long getRenderLatencyP999Micros() {
+		return latencies.getPercentile(0.999) / 1000;
+	}
+
+	public long getRenderLatencyMaxMicros() {
+		return latencies.getMax() / 1000;
+	}
+
+	public Map<String, Long> getBlockRepetitions() {
+		return snapshot(repetitions);
+	}
+
+	public long getPageSizeP50() {
+		return sizes.getPercentile(0.5);
+	}
+
+	public long getPageSizeP95() {
+		return sizes.getPercentile(0.95);
+	}
+
+	public long getPageSizeMax() {
+		return sizes.getMax();
+	}
+
+	public Map<String, Long> getBlockSizes() {
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : blockChars.entrySet()) {
+			LongAdder reps = repetitions.get(e.getKey());
+			long n = (reps != null ? reps.sum() : 0);
+			long size = (n > 0 ? e.getValue().sum() / n : 0);
+			result.put(e.getKey(), Long.valueOf(size));
+		}
+		return result;
+	}
+
+	public int getSizeEstimate() {
+		long size = recentSizes.getPercentile(0.95);
+		return (int) Math.min(size, Integer.MAX_VALUE - 8);
+	}
+
+	public void reset() {
+		parseCount.reset();
+		parseNanos.reset();
+		started.reset();
+		completed.reset();
+		aborted.reset();
+		chars.reset();
+		latencies.reset();
+		sizes.reset();
+		recentSizes.reset();
+		recentCount.set(0);
+		abortsByError.clear();
+		repetitions.clear();
+		blockChars.clear();
+	}
+
+	private static void count(ConcurrentHashMap<String, LongAdder> map,
+			String key, long n) {
+		if (key == null)
+			key = "";
+		LongAdder counter = map.get(key);
+		if (counter == null) {
+			LongAdder prev = map.putIfAbsent(key,
+					counter = new LongAdder());
+			if (prev != null)
+				counter = prev;
+		}
+		counter.add(n);
+	}
+
+	private static Map<String, Long> snapshot(
+			ConcurrentHashMap<String, LongAdder> map) {
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : map.entrySet()) {
+			long sum = e.getValue().sum();
+			result.put(e.getKey(), Long.valueOf(sum));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.util.Map;
+
+/**
+ * RepStatsMXBean is the management interface of RepStats, with the
+ * measures of the parsing and writing of one template or of all of them.
+ * The times are given in microseconds and the lengths in characters.
+ */
+public interface RepStatsMXBean {
+
+	/**
+	 * Returns the name of the template, or "all" for the aggregated data.
+	 */
+	String getName();
+
+	long getParseCount();
+
+	long getParseTimeMicros();
+
+	long getRendersStarted();
+
+	long getRendersCompleted();
+
+	long getRendersAborted();
+
+	/**
+	 * Returns the number of aborted pages by the error message, or by the
+	 * class of the exception when the Writer failed.
+	 */
+	Map<String, Long> getAbortsByError();
+
+	long getCharsWritten();
+
+	long getRenderLatencyP50Micros();
+
+	long getRenderLatencyP95Micros();
+
+	long getRenderLatencyP99Micros();
+
+	long getRenderLatencyP999Micros();
+
+	long getRenderLatencyMaxMicros();
+
+	/**
+	 * Returns the number of repetitions of each block by its path,
+	 * like /list/item, only for the stats of a single template.
+	 */
+	Map<String, Long> getBlockRepetitions();
+
+	/**
+	 * Returns the median length of the completed pages.
+	 */
+	long getPageSizeP50();
+
+	/**
+	 * Returns the 95th percentile of the length of the pages completed
+	 * since the counters were reset.
+	 */
+	long getPageSizeP95();
+
+	long getPageSizeMax();
+
+	/**
+	 * Returns the estimated length of the next pages, used to create
+	 * their buffers, or 0 if no page has been completed. It is the 95th
+	 * percentile of the lengths of the completed pages, weighing less the
+	 * older pages, so it follows the changes in the sizes of the pages,
+	 * unlike getPageSizeP95.
+	 */
+	int getSizeEstimate();
+
+	/**
+	 * Returns the average length written by each repetition of each block
+	 * (without its children) by its path, only for a single template, to
+	 * find the blocks that write most of the pages. It is only reported,
+	 * not used to create buffers.
+	 */
+	Map<String, Long> getBlockSizes();
+
+	/**
+	 * Sets all the counters to zero.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Rep template system - Copyright 2015 Carlos Rica <jasampler@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rep;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * RepTeeWriter is a Writer that writes the same text to a main Writer and
+ * to other sinks, like the response to a client and a file that caches
+ * the page, so the page is generated once without keeping all its text.
+ *
+ * <p>The errors of the main Writer are thrown as usual, aborting the page,
+ * but an error in other sink is kept and only stops writing to that sink,
+ * so the rest of the page is written to the main Writer and to the other
+ * sinks. The sinks added as an OutputStream or a channel get the text
+ * encoded in UTF-8 by their own buffered encoder, which is written to them
+ * when full and when the RepTeeWriter is flushed or closed.</p>
+ *
+ * <p>Closing the RepTeeWriter closes all the sinks. It must be used by
+ * only one thread at a time.</p>
+ */
+public class RepTeeWriter extends Writer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Writer main;
+	private final ArrayList<Writer> sinks = new ArrayList<Writer>();
+	private final ArrayList<Exception> failures =
+			new ArrayList<Exception>(); //by sink, or null
+
+	/**
+	 * Creates a writer that writes to the given main Writer, and to the
+	 * sinks added later.
+	 */
+	public RepTeeWriter(Writer main) {
+		this.main = main;
+	}
+
+	/**
+	 * Adds a Writer that will get the text written after this call, and
+	 * returns its number for getFailure, starting at 0.
+	 */
+	public int addSink(Writer sink) {
+		sinks.add(sink);
+		failures.add(null);
+		return sinks.size() - 1;
+	}
+
+	/**
+	 * Adds an OutputStream that will get the text written after this call
+	 * encoded in UTF-8, and returns its number for getFailure.
+	 */
+	public int addSink(OutputStream sink) {
+		return addSink(new OutputStreamWriter(sink, UTF8));
+	}
+
+	/**
+	 * Adds a channel that will get the text written after this call
+	 * encoded in UTF-8, and returns its number for getFailure.
+	 */
+	public int addSink(WritableByteChannel sink) {
+		return addSink(Channels.newWriter(sink, UTF8.newEncoder(), -1));
+	}
+
+	/**
+	 * Returns the error that stopped writing to the sink with the given
+	 * number, or null if it has not failed.
+	 */
+	public Exception getFailure(int sink) {
+		return failures.get(sink);
+	}
+
+	/**
+	 * Returns the number of sinks that have failed.
+	 */
+	public int getFailureCount() {
+		int count = 0;
+		for (Exception e : failures)
+			if (e != null)
+				count++;
+		return count;
+	}
+
+	public void write(int c) throws IOException {
+		main.write(c);
+		for (int i = 0; i < sinks.size(); i++) {
+			if (failures.get(i) == null) {
+				try {
+					sinks.get(i).write(c);
+				}
+				catch (Exception e) {
+					failed(i, e);
+				}
+			}
+		}
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		main.write(cbuf, off, len);
+		for (int i = 0; i < sinks.size(); i++) {
+			if (failures.get(i) == null) {
+				try {
+					sinks.get(i).write(cbuf, off, len);
+				}
+				catch (Exception e) {
+					failed(i, e);
+				}
+			}
+		}
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		main.write(str, off, len);
+		for (int i = 0; i < sinks.size(); i++) {
+			if (failures.get(i) == null) {
+				try {
+					sinks.get(i).write(str, off, len);
+				}
+				catch (Exception e) {
+					failed(i, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flushes the main Writer and the sinks that have not failed.
+	 */
+	public void flush() throws IOException {
+		main.flush();
+		for (int i = 0; i < sinks.size(); i++) {
+			if (failures.get(i) == null) {
+				try {
+					sinks.get(i).flush();
+				}
+				catch (Exception e) {
+					failed(i, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all the sinks, even if they have failed, and then the main
+	 * Writer, throwing only the errors of the main Writer.
+	 */
+	public void close() throws IOException {
+		for (int i = 0; i < sinks.size(); i++) {
+			try {
+				sinks.get(i).close();
+			}
+			catch (Exception e) {
+				if (failures.get(i) == null)
+					failed(i, e);
+			}
+		}
+		main.close();
+	}
+
+	//Stops writing to the sink that has failed:
+	private void failed(int sink, Exception e) {
+		failures.set(sink, e);
+	}
+
+}